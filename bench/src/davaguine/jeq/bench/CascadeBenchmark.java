@@ -0,0 +1,71 @@
+/*
+ *  21.04.2004 Original verion. davagin@udm.ru.
+ *-----------------------------------------------------------------------
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *----------------------------------------------------------------------
+ */
+package davaguine.jeq.bench;
+
+import davaguine.jeq.core.AbstractIIR;
+import davaguine.jeq.core.IIR;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the CPU cost of the cascaded (two stage) filtering with the
+ * single stage one. The score is the cost of one sample in nanoseconds.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+@OperationsPerInvocation(CascadeBenchmark.SAMPLES)
+public class CascadeBenchmark {
+    static final int SAMPLES = 16384;
+    private static final int CHANNELS = 2;
+    private static final float RATE = 44100;
+
+    @Param({"10", "31"})
+    public int bands;
+
+    @Param({"scalar", "auto"})
+    public String engine;
+
+    @Param({"false", "true"})
+    public boolean cascade;
+
+    private AbstractIIR iir;
+    private int[] source;
+    private int[] data;
+
+    @Setup
+    public void setup() {
+        iir = "scalar".equals(engine) ? new IIR(bands, RATE, CHANNELS) : AbstractIIR.newInstance(bands, RATE, CHANNELS);
+        iir.setCascade(cascade);
+        Signals.smile(iir.getControls(), bands, CHANNELS);
+        source = Signals.pcm(SAMPLES / CHANNELS, CHANNELS, RATE, 16);
+        data = new int[source.length];
+    }
+
+    @Benchmark
+    public int[] iir() {
+        System.arraycopy(source, 0, data, 0, source.length);
+        iir.iir(data, data.length);
+        return data;
+    }
+}
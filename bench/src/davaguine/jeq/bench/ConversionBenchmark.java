@@ -0,0 +1,152 @@
+/*
+ *  21.04.2004 Original verion. davagin@udm.ru.
+ *-----------------------------------------------------------------------
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *----------------------------------------------------------------------
+ */
+package davaguine.jeq.bench;
+
+import davaguine.jeq.core.ByteBufferEqualizer;
+import davaguine.jeq.core.EqualizerProcessor;
+import davaguine.jeq.core.IIR;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the sample conversion (bytes to int and back) of the public
+ * entry points, per sample format. The equalizer is flat, so the scalar
+ * engine passes the samples through: "processor" is EqualizerProcessor on
+ * a byte array, "heap" and "direct" are ByteBufferEqualizer on a heap and a
+ * direct buffer, "bytes" is the byte by byte assembly the library code
+ * replaced. Besides the conversion the library paths record the input for
+ * the skipped bands. The score is the cost of one sample in nanoseconds.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+@OperationsPerInvocation(ConversionBenchmark.SAMPLES)
+public class ConversionBenchmark {
+    static final int SAMPLES = 16384;
+    private static final int CHANNELS = 2;
+    private static final float RATE = 44100;
+
+    @Param({"8", "16", "24"})
+    public int samplesize;
+
+    @Param({"false", "true"})
+    public boolean bigendian;
+
+    @Param({"bytes", "processor", "heap", "direct"})
+    public String method;
+
+    private EqualizerProcessor processor;
+    private ByteBufferEqualizer equalizer;
+    private ByteBuffer buffer;
+    private byte[] in;
+    private byte[] out;
+    private int[] data;
+
+    @Setup
+    public void setup() {
+        in = new byte[SAMPLES * (samplesize >> 3)];
+        out = new byte[in.length];
+        data = new int[SAMPLES];
+        new Random(1).nextBytes(in);
+        processor = new EqualizerProcessor(new IIR(10, RATE, CHANNELS), true, samplesize, bigendian);
+        equalizer = new ByteBufferEqualizer(new IIR(10, RATE, CHANNELS), true, samplesize);
+        buffer = "direct".equals(method) ? ByteBuffer.allocateDirect(in.length) : ByteBuffer.allocate(in.length);
+        buffer.order(bigendian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        buffer.put(in).clear();
+    }
+
+    @Benchmark
+    public Object convert() {
+        if ("processor".equals(method)) {
+            processor.process(out);
+            return out;
+        }
+        if ("heap".equals(method) || "direct".equals(method)) {
+            equalizer.process(buffer);
+            return buffer;
+        }
+        int samples = toIntBytes(in, in.length, data);
+        toByteBytes(data, samples, out);
+        return out;
+    }
+
+    /* Byte by byte conversion of signed samples */
+    private int toIntBytes(byte[] b, int length, int[] data) {
+        int l = 0, p = 0;
+        switch (samplesize) {
+            case 8:
+                for (l = 0; l < length; l++)
+                    data[l] = b[p++];
+                break;
+            case 16:
+                for (l = 0; p < length; l++, p += 2)
+                    data[l] = bigendian ? (short) ((b[p] & 0xff) << 8 | (b[p + 1] & 0xff))
+                            : (short) ((b[p] & 0xff) | (b[p + 1] & 0xff) << 8);
+                break;
+            case 24:
+                for (l = 0; p < length; l++, p += 3)
+                    data[l] = bigendian ? ((b[p] & 0xff) << 24 | (b[p + 1] & 0xff) << 16 | (b[p + 2] & 0xff) << 8) >> 8
+                            : ((b[p] & 0xff) << 8 | (b[p + 1] & 0xff) << 16 | (b[p + 2] & 0xff) << 24) >> 8;
+                break;
+        }
+        return l;
+    }
+
+    /* Byte by byte conversion back with clamping */
+    private void toByteBytes(int[] data, int length, byte[] b) {
+        int p = 0, d;
+        for (int i = 0; i < length; i++) {
+            d = data[i];
+            switch (samplesize) {
+                case 8:
+                    b[p++] = (byte) (d > 127 ? 127 : d < -128 ? -128 : d);
+                    break;
+                case 16:
+                    d = d > 32767 ? 32767 : d < -32768 ? -32768 : d;
+                    if (bigendian) {
+                        b[p++] = (byte) (d >> 8);
+                        b[p++] = (byte) d;
+                    } else {
+                        b[p++] = (byte) d;
+                        b[p++] = (byte) (d >> 8);
+                    }
+                    break;
+                case 24:
+                    d = d > 8388607 ? 8388607 : d < -8388608 ? -8388608 : d;
+                    if (bigendian) {
+                        b[p++] = (byte) (d >> 16);
+                        b[p++] = (byte) (d >> 8);
+                        b[p++] = (byte) d;
+                    } else {
+                        b[p++] = (byte) d;
+                        b[p++] = (byte) (d >> 8);
+                        b[p++] = (byte) (d >> 16);
+                    }
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *  21.04.2004 Original verion. davagin@udm.ru.
+ *-----------------------------------------------------------------------
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *----------------------------------------------------------------------
+ */
+package davaguine.jeq.bench;
+
+import davaguine.jeq.core.AbstractIIR;
+import davaguine.jeq.core.IIR;
+import davaguine.jeq.core.IIRFloat;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of a sample through silence with and without the
+ * denormal protection. Before every iteration the equalizer filters a
+ * second of music and then SILENCE seconds of silence, so the filter
+ * history has decayed for a while; the iteration then filters blocks of
+ * music ("music") or of silence ("silence"). With the protection on both
+ * scores are the same. The score is the cost of one sample in nanoseconds.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+@OperationsPerInvocation(DenormalBenchmark.SAMPLES)
+public class DenormalBenchmark {
+    static final int SAMPLES = 4096;
+    private static final int CHANNELS = 2;
+    private static final float RATE = 44100;
+    private static final int SILENCE = 2;
+
+    @Param({"10", "31"})
+    public int bands;
+
+    @Param({"scalar", "auto", "float", "autofloat"})
+    public String engine;
+
+    @Param({"true", "false"})
+    public boolean protection;
+
+    @Param({"music", "silence"})
+    public String input;
+
+    private AbstractIIR iir;
+    private int[] music;
+    private int[] source;
+    private int[] data;
+
+    @Setup
+    public void setup() {
+        if ("scalar".equals(engine))
+            iir = new IIR(bands, RATE, CHANNELS);
+        else if ("float".equals(engine))
+            iir = new IIRFloat(bands, RATE, CHANNELS);
+        else if ("autofloat".equals(engine))
+            iir = AbstractIIR.newInstance(bands, RATE, CHANNELS, AbstractIIR.EQ_FLOAT_PRECISION);
+        else
+            iir = AbstractIIR.newInstance(bands, RATE, CHANNELS);
+        iir.setDenormalProtection(protection);
+        Signals.smile(iir.getControls(), bands, CHANNELS);
+        music = Signals.pcm((int) RATE, CHANNELS, RATE, 16);
+        source = "music".equals(input) ? Arrays.copyOf(music, SAMPLES) : new int[SAMPLES];
+        data = new int[SAMPLES];
+    }
+
+    @Setup(Level.Iteration)
+    public void decay() {
+        iir.cleanHistory();
+        int[] buf = music.clone();
+        iir.iir(buf, buf.length);
+        for (int n = 0; n < SILENCE * (int) RATE * CHANNELS; n += SAMPLES) {
+            Arrays.fill(data, 0);
+            iir.iir(data, SAMPLES);
+        }
+    }
+
+    @Benchmark
+    public int[] iir() {
+        System.arraycopy(source, 0, data, 0, SAMPLES);
+        iir.iir(data, SAMPLES);
+        return data;
+    }
+}
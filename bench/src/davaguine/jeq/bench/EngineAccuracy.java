@@ -0,0 +1,100 @@
+/*
+ *  21.04.2004 Original verion. davagin@udm.ru.
+ *-----------------------------------------------------------------------
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *----------------------------------------------------------------------
+ */
+package davaguine.jeq.bench;
+
+import davaguine.jeq.core.AbstractIIR;
+import davaguine.jeq.core.IIR;
+
+/**
+ * Checks the engines picked by <code>AbstractIIR.newInstance</code> against
+ * the scalar <code>IIR</code> for every supported configuration, and prints
+ * the largest difference (in LSB) and the signal to error ratio.
+ * Exits with status 1 if any output of the double precision engine differs
+ * by more than the tolerance. Float precision engines are only reported,
+ * for 16-bit and 24-bit material.
+ * <p/>
+ * Usage: java --add-modules jdk.incubator.vector -cp target/benchmarks.jar
+ * davaguine.jeq.bench.EngineAccuracy [tolerance in LSB, default 1]
+ */
+public class EngineAccuracy {
+    private static final float[] RATES = {8000, 11025, 16000, 22050, 44100, 48000, 96000, 192000};
+    private static final int[] BANDS = {10, 15, 25, 31};
+    private static final int[] CHANNELS = {1, 2, 8};
+    private static final int FRAMES = 1 << 16;
+    private static final int BLOCK = 1000;
+
+    public static void main(String[] args) {
+        long tolerance = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        boolean failed = false;
+        System.out.println("vector engine available: " + AbstractIIR.isVectorSupported());
+        for (float rate : RATES)
+            for (int bands : BANDS)
+                for (int channels : CHANNELS) {
+                    if (!AbstractIIR.isParamsSupported(bands, rate, channels))
+                        continue;
+                    AbstractIIR engine = AbstractIIR.newInstance(bands, rate, channels);
+                    long max = compare(new IIR(bands, rate, channels), engine, bands, rate, channels, 16);
+                    failed |= max > tolerance;
+                    IIR reference = new IIR(bands, rate, channels);
+                    reference.setCascade(true);
+                    engine = AbstractIIR.newInstance(bands, rate, channels);
+                    engine.setCascade(true);
+                    max = compare(reference, engine, bands, rate, channels, 16);
+                    failed |= max > tolerance;
+                    for (int samplesize = 16; samplesize <= 24; samplesize += 8)
+                        compare(new IIR(bands, rate, channels),
+                                AbstractIIR.newInstance(bands, rate, channels, AbstractIIR.EQ_FLOAT_PRECISION),
+                                bands, rate, channels, samplesize);
+                }
+        System.exit(failed ? 1 : 0);
+    }
+
+    static long compare(AbstractIIR reference, AbstractIIR engine, int bands, float rate, int channels, int samplesize) {
+        Signals.smile(reference.getControls(), bands, channels);
+        Signals.smile(engine.getControls(), bands, channels);
+        int[] source = Signals.pcm(FRAMES, channels, rate, samplesize);
+        int[] expected = source.clone();
+        int[] actual = source.clone();
+        int block = BLOCK * channels;
+        for (int off = 0; off < source.length; off += block) {
+            int len = Math.min(block, source.length - off);
+            int[] a = new int[len];
+            int[] b = new int[len];
+            System.arraycopy(source, off, a, 0, len);
+            System.arraycopy(source, off, b, 0, len);
+            reference.iir(a, len);
+            engine.iir(b, len);
+            System.arraycopy(a, 0, expected, off, len);
+            System.arraycopy(b, 0, actual, off, len);
+        }
+        long max = 0;
+        double signal = 0, noise = 0;
+        for (int i = 0; i < expected.length; i++) {
+            long d = Math.abs((long) expected[i] - actual[i]);
+            max = Math.max(max, d);
+            signal += (double) expected[i] * expected[i];
+            noise += (double) d * d;
+        }
+        String snr = noise == 0 ? "exact" : String.format("%.1f dB", 10 * Math.log10(signal / noise));
+        System.out.printf("%-15s %-7s %2d bit %6.0f Hz %2d bands %d ch: max diff %d LSB, SNR %s%n",
+                engine.getClass().getSimpleName(), engine.isCascade() ? "cascade" : "single",
+                samplesize, rate, bands, channels, max, snr);
+        return max;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *  21.04.2004 Original verion. davagin@udm.ru.
+ *-----------------------------------------------------------------------
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *----------------------------------------------------------------------
+ */
+package davaguine.jeq.bench;
+
+import davaguine.jeq.core.AbstractIIR;
+import davaguine.jeq.core.EqualizerInputStream;
+import davaguine.jeq.core.IIR;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the whole <code>core.EqualizerInputStream.read(byte[], int, int)</code>
+ * pipeline: buffering, byte to int conversion, filtering and conversion back.
+ * The scalar engine does the conversions and the filtering in one fused pass,
+ * the engine picked by AbstractIIR.newInstance may not.
+ * The score is the cost of one sample in nanoseconds.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+@OperationsPerInvocation(EqualizerInputStreamBenchmark.SAMPLES)
+public class EqualizerInputStreamBenchmark {
+    static final int SAMPLES = 16384;
+    private static final int CHANNELS = 2;
+    private static final float RATE = 44100;
+
+    @Param({"8", "16", "24"})
+    public int samplesize;
+
+    @Param({"false", "true"})
+    public boolean bigendian;
+
+    @Param({"10", "31"})
+    public int bands;
+
+    @Param({"scalar", "auto"})
+    public String engine;
+
+    private EqualizerInputStream stream;
+    private byte[] block;
+
+    @Setup
+    public void setup() {
+        int[] pcm = Signals.pcm(SAMPLES / CHANNELS * 4, CHANNELS, RATE, samplesize);
+        AbstractIIR iir = "scalar".equals(engine) ? new IIR(bands, RATE, CHANNELS) : AbstractIIR.newInstance(bands, RATE, CHANNELS);
+        stream = new EqualizerInputStream(new LoopInputStream(Signals.bytes(pcm, samplesize, true, bigendian)),
+                iir, true, samplesize, bigendian);
+        Signals.smile(stream.getControls(), bands, CHANNELS);
+        block = new byte[SAMPLES * (samplesize >> 3)];
+    }
+
+    @Benchmark
+    public byte[] read() throws IOException {
+        int off = 0;
+        while (off < block.length)
+            off += stream.read(block, off, block.length - off);
+        return block;
+    }
+
+    /**
+     * Endless stream which repeats the same data.
+     */
+    static class LoopInputStream extends InputStream {
+        private final byte[] data;
+        private int pos;
+
+        LoopInputStream(byte[] data) {
+            this.data = data;
+        }
+
+        public int read() {
+            int b = data[pos++] & 0xff;
+            if (pos == data.length)
+                pos = 0;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            int n = Math.min(len, data.length - pos);
+            System.arraycopy(data, pos, b, off, n);
+            pos += n;
+            if (pos == data.length)
+                pos = 0;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ *  21.04.2004 Original verion. davagin@udm.ru.
+ *-----------------------------------------------------------------------
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *----------------------------------------------------------------------
+ */
+package davaguine.jeq.bench;
+
+import davaguine.jeq.core.AbstractIIR;
+import davaguine.jeq.core.IIR;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the raw filter kernel <code>IIR.iir(int[], int)</code>.
+ * The score is the cost of one sample (not frame) in nanoseconds.
+ * Every invocation restores the block from a pristine copy, so the
+ * filter always sees the same material; the copy is part of the score.
+ * The "auto" and "float" engines are whatever <code>AbstractIIR.newInstance</code>
+ * picks for double and float precision; the fork is started with the vector
+ * module, so these are the vectorized engines.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+@OperationsPerInvocation(IIRBenchmark.SAMPLES)
+public class IIRBenchmark {
+    static final int SAMPLES = 16384;
+
+    @Param({"10", "15", "25", "31"})
+    public int bands;
+
+    @Param({"1", "2", "8"})
+    public int channels;
+
+    @Param({"44100", "48000"})
+    public float rate;
+
+    @Param({"scalar", "auto", "float"})
+    public String engine;
+
+    private AbstractIIR iir;
+    private int[] source;
+    private int[] data;
+
+    @Setup
+    public void setup() {
+        if ("scalar".equals(engine))
+            iir = new IIR(bands, rate, channels);
+        else if ("float".equals(engine))
+            iir = AbstractIIR.newInstance(bands, rate, channels, AbstractIIR.EQ_FLOAT_PRECISION);
+        else
+            iir = AbstractIIR.newInstance(bands, rate, channels);
+        Signals.smile(iir.getControls(), bands, channels);
+        source = Signals.pcm(SAMPLES / channels, channels, rate, 16);
+        data = new int[source.length];
+    }
+
+    @Benchmark
+    public int[] iir() {
+        System.arraycopy(source, 0, data, 0, source.length);
+        iir.iir(data, data.length);
+        return data;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ *  21.04.2004 Original verion. davagin@udm.ru.
+ *-----------------------------------------------------------------------
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *----------------------------------------------------------------------
+ */
+package davaguine.jeq.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the JEQ benchmarks with the allocation profiler attached, so every
+ * result is reported both as ns/sample and as bytes allocated per sample.
+ * All usual JMH command line options are accepted.
+ * <p/>
+ * On JDK 17 and later the forked JVMs get the jdk.incubator.vector module,
+ * so AbstractIIR.newInstance can pick the vectorized engines; older JDKs
+ * don't know the option and run the benchmarks without it.
+ */
+public class Main {
+    private final static String VECTOR_MODULE = "--add-modules=jdk.incubator.vector";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(cmd).addProfiler(GCProfiler.class);
+        if (getJavaVersion() >= 17) {
+            List<String> append = new ArrayList<String>();
+            if (cmd.getJvmArgsAppend().hasValue())
+                append.addAll(cmd.getJvmArgsAppend().get());
+            append.add(VECTOR_MODULE);
+            options.jvmArgsAppend(append.toArray(new String[append.size()]));
+        }
+        new Runner(options.build()).run();
+    }
+
+    /* Feature version of the running JVM: "1.8" is 8, "17" is 17 */
+    private static int getJavaVersion() {
+        String version = System.getProperty("java.specification.version");
+        if (version.startsWith("1."))
+            version = version.substring(2);
+        return Integer.parseInt(version);
+    }
+}
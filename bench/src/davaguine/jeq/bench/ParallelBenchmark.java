@@ -0,0 +1,68 @@
+/*
+ *  21.04.2004 Original verion. davagin@udm.ru.
+ *-----------------------------------------------------------------------
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *----------------------------------------------------------------------
+ */
+package davaguine.jeq.bench;
+
+import davaguine.jeq.core.IIR;
+import davaguine.jeq.core.IIRParallel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares IIRParallel, which filters the channels of a block on the
+ * common ForkJoinPool, with the single threaded IIR. The score is the
+ * time of one block in microseconds, i.e. the latency the engine adds.
+ * Parallel filtering needs more than one CPU to pay off.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParallelBenchmark {
+    private static final int FRAMES = 2048;
+    private static final int BANDS = 31;
+    private static final float RATE = 48000;
+
+    @Param({"8", "16"})
+    public int channels;
+
+    @Param({"scalar", "parallel"})
+    public String engine;
+
+    private IIR iir;
+    private int[] source;
+    private int[] data;
+
+    @Setup
+    public void setup() {
+        iir = "parallel".equals(engine) ? new IIRParallel(BANDS, RATE, channels) : new IIR(BANDS, RATE, channels);
+        Signals.smile(iir.getControls(), BANDS, channels);
+        source = Signals.pcm(FRAMES, channels, RATE, 16);
+        data = new int[source.length];
+    }
+
+    @Benchmark
+    public int[] block() {
+        System.arraycopy(source, 0, data, 0, source.length);
+        iir.iir(data, data.length);
+        return data;
+    }
+}
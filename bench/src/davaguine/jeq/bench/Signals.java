@@ -0,0 +1,98 @@
+/*
+ *  21.04.2004 Original verion. davagin@udm.ru.
+ *-----------------------------------------------------------------------
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *----------------------------------------------------------------------
+ */
+package davaguine.jeq.bench;
+
+import davaguine.jeq.core.IIRControls;
+
+import java.util.Random;
+
+/**
+ * Test material shared by the benchmarks.
+ */
+final class Signals {
+    private Signals() {
+    }
+
+    /**
+     * Generates interleaved PCM: a few sines plus white noise at about -6 dBFS.
+     *
+     * @param frames     is the number of frames
+     * @param channels   is the number of channels
+     * @param rate       is the sample rate
+     * @param samplesize is the sample bit size
+     * @return interleaved samples
+     */
+    static int[] pcm(int frames, int channels, float rate, int samplesize) {
+        Random random = new Random(20040421L);
+        double full = (1 << (samplesize - 1)) - 1;
+        int[] data = new int[frames * channels];
+        for (int i = 0; i < frames; i++)
+            for (int c = 0; c < channels; c++) {
+                double t = i / (double) rate;
+                double v = 0.2 * Math.sin(2 * Math.PI * 110 * t + c)
+                        + 0.15 * Math.sin(2 * Math.PI * 1000 * t)
+                        + 0.1 * Math.sin(2 * Math.PI * 9000 * t)
+                        + 0.05 * (random.nextDouble() * 2 - 1);
+                data[i * channels + c] = (int) (v * full);
+            }
+        return data;
+    }
+
+    /**
+     * Encodes samples into PCM bytes.
+     *
+     * @param data       is the interleaved samples
+     * @param samplesize is the sample bit size (8, 16 or 24)
+     * @param signed     indicates that the data is signed
+     * @param bigendian  indicates "big endian" encoding
+     * @return PCM bytes
+     */
+    static byte[] bytes(int[] data, int samplesize, boolean signed, boolean bigendian) {
+        int bytes = samplesize >> 3;
+        byte[] b = new byte[data.length * bytes];
+        int p = 0;
+        for (int i = 0; i < data.length; i++) {
+            int d = data[i];
+            if (!signed)
+                d += 1 << (samplesize - 1);
+            for (int n = 0; n < bytes; n++) {
+                int shift = bigendian ? (bytes - 1 - n) << 3 : n << 3;
+                b[p++] = (byte) (d >> shift);
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Sets a non-flat "smile" curve, so every band does real work.
+     *
+     * @param controls is the controls to be set
+     * @param bands    is the number of bands
+     * @param channels is the number of channels
+     */
+    static void smile(IIRControls controls, int bands, int channels) {
+        for (int c = 0; c < channels; c++) {
+            controls.setPreampValue(c, 0.8f);
+            for (int b = 0; b < bands; b++) {
+                double x = (b - (bands - 1) / 2.0) / (bands / 2.0);
+                controls.setBandValue(b, c, (float) (0.3 * x * x - 0.05));
+            }
+        }
+    }
+}
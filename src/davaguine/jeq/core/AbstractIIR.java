@@ -0,0 +1,808 @@
+/*
+ *  21.04.2004 Original verion. davagin@udm.ru.
+ *-----------------------------------------------------------------------
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *----------------------------------------------------------------------
+ */
+package davaguine.jeq.core;
+
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Common part of the IIR equalizer engines: configuration, controls
+ * and coefficients. The filtering itself is done by subclasses.
+ */
+public abstract class AbstractIIR extends IIRBase {
+    /**
+     * Max number of channels supported
+     *
+     * @deprecated any positive number of channels is supported,
+     *             the filter state is sized to the actual channel count
+     */
+    @Deprecated
+    public final static int EQ_MAX_CHANNELS = 2;
+    /**
+     * Max bands supported by the code
+     */
+    public final static int EQ_MAX_BANDS = 31;
+    /**
+     * Supported sample rates
+     */
+    public final static float EQ_11025_RATE = 11025;
+    public final static float EQ_22050_RATE = 22050;
+    public final static float EQ_44100_RATE = 44100;
+    public final static float EQ_48000_RATE = 48000;
+    /**
+     * Supported number of bands
+     */
+    public final static int EQ_10_BANDS = 10;
+    public final static int EQ_15_BANDS = 15;
+    public final static int EQ_25_BANDS = 25;
+    public final static int EQ_31_BANDS = 31;
+    /**
+     * Precision of filter state and arithmetic
+     */
+    public final static int EQ_DOUBLE_PRECISION = 64;
+    public final static int EQ_FLOAT_PRECISION = 32;
+    /**
+     * Gains move to new values by equal steps
+     */
+    public final static int RAMP_LINEAR = 0;
+    /**
+     * Gains move to new values by equal fractions of the remaining distance,
+     * which is 60 dB down at the end of the ramp
+     */
+    public final static int RAMP_EXPONENTIAL = 1;
+    /**
+     * Values of the filter history below this magnitude are flushed to zero
+     * by the denormal protection of the double precision engines
+     */
+    public final static double DENORMAL_THRESHOLD = 1e-20;
+    /**
+     * Values of the filter history below this magnitude are flushed to zero
+     * by the denormal protection of the float precision engines
+     */
+    public final static double FLOAT_DENORMAL_THRESHOLD = 1e-15;
+    /* Number of frames between two checks of the filter history for tiny values */
+    final static int FLUSH_INTERVAL = 256;
+
+    /* Vectorized engines, null if they can't be used in this JVM */
+    private final static Class<?> VECTOR_ENGINE = findVectorEngine("davaguine.jeq.core.IIRVector");
+    private final static Class<?> FLOAT_VECTOR_ENGINE = findVectorEngine("davaguine.jeq.core.IIRFloatVector");
+
+    /* Shared coefficients */
+    final IIRCoefficientSet coefficients;
+    /* Coefficients, one array per coefficient indexed by band, shared with the set */
+    final double[] alpha;
+    final double[] beta;
+    final double[] gamma;
+
+    /* Equalizer config */
+    final IIRControls eqcfg;
+    /* Preamp of the controls snapshot taken by the last loadGains() */
+    float[] preamp;
+    /* rate */
+    final float rate;
+    /* channels */
+    final int channels;
+    /* bands */
+    final int bands;
+    /* second filter stage is enabled */
+    boolean cascade;
+    /* Interleaved copy of planar data for engines without planar code */
+    private int[] interleaved;
+    /* tiny values of the filter history are flushed to zero */
+    private boolean denormalprotection = true;
+    /* frames filtered since the filter history was checked for tiny values */
+    private int unflushed;
+    /* frames between two checks, engines with float history check every block */
+    int flushinterval = FLUSH_INTERVAL;
+
+    /**
+     * Constructs equalizer with given config. The built-in coefficient tables
+     * are used where they exist, otherwise the default band layout for given
+     * number of bands is designed for the sample rate.
+     *
+     * @param bands    is the number of bands to be used
+     * @param rate     is the sample rate of equalizer
+     * @param channels is the number of channels
+     */
+    protected AbstractIIR(int bands, float rate, int channels) {
+        this(getCoefficients(bands, rate, channels), channels);
+    }
+
+    /**
+     * Constructs equalizer with custom band layout
+     *
+     * @param layout   is the band layout
+     * @param rate     is the sample rate of equalizer
+     * @param channels is the number of channels
+     */
+    protected AbstractIIR(IIRBandLayout layout, float rate, int channels) {
+        this(getCoefficients(layout, rate, channels), channels);
+    }
+
+    /**
+     * Constructs equalizer with given coefficients
+     *
+     * @param coefficients is the shared coefficient set
+     * @param channels     is the number of channels
+     */
+    protected AbstractIIR(IIRCoefficientSet coefficients, int channels) {
+        if (!isChannelsSupported(channels))
+            throw new IllegalArgumentException("Unsupported parameters");
+
+        this.coefficients = coefficients;
+        this.rate = coefficients.getRate();
+        this.channels = channels;
+        this.bands = coefficients.getBands();
+        this.eqcfg = new IIRControls(bands, channels);
+        this.preamp = eqcfg.getSnapshot().preamp;
+        this.alpha = coefficients.alpha;
+        this.beta = coefficients.beta;
+        this.gamma = coefficients.gamma;
+    }
+
+    private static IIRCoefficientSet getCoefficients(int bands, float rate, int channels) {
+        if (!isParamsSupported(bands, rate, channels))
+            throw new IllegalArgumentException("Unsupported parameters");
+        return IIRCoefficientSet.getInstance(bands, rate);
+    }
+
+    private static IIRCoefficientSet getCoefficients(IIRBandLayout layout, float rate, int channels) {
+        if (!isParamsSupported(layout, rate, channels))
+            throw new IllegalArgumentException("Unsupported parameters");
+        return IIRCoefficientSet.getInstance(layout, rate);
+    }
+
+    /**
+     * Creates the fastest double precision equalizer engine available in this JVM.
+     *
+     * @param bands    is the number of bands to be used
+     * @param rate     is the sample rate of equalizer
+     * @param channels is the number of channels
+     * @return new equalizer engine
+     * @see #newInstance(int, float, int, int)
+     */
+    public static AbstractIIR newInstance(int bands, float rate, int channels) {
+        return newInstance(bands, rate, channels, EQ_DOUBLE_PRECISION);
+    }
+
+    /**
+     * Creates the fastest equalizer engine of given precision available in this JVM.
+     * The vectorized engines are used when the jdk.incubator.vector module
+     * is present (start the JVM with --add-modules jdk.incubator.vector)
+     * and they are not disabled by the davaguine.jeq.vector=false system property.
+     * Otherwise the scalar IIR or IIRFloat is used.
+     * <p/>
+     * Only the scalar IIR can ramp the gains (see isRampSupported); create it
+     * directly when ramping is needed.
+     * <p/>
+     * Float precision halves the state memory and doubles the SIMD width.
+     * It is good for 16-bit data; for 24-bit data double precision should be used
+     * (see readme.txt for measured signal to noise ratios).
+     *
+     * @param bands     is the number of bands to be used
+     * @param rate      is the sample rate of equalizer
+     * @param channels  is the number of channels
+     * @param precision is EQ_DOUBLE_PRECISION or EQ_FLOAT_PRECISION
+     * @return new equalizer engine
+     */
+    public static AbstractIIR newInstance(int bands, float rate, int channels, int precision) {
+        switch (precision) {
+            case EQ_DOUBLE_PRECISION:
+                if (VECTOR_ENGINE != null)
+                    return newInstance(VECTOR_ENGINE, int.class, bands, rate, channels);
+                return new IIR(bands, rate, channels);
+            case EQ_FLOAT_PRECISION:
+                if (FLOAT_VECTOR_ENGINE != null)
+                    return newInstance(FLOAT_VECTOR_ENGINE, int.class, bands, rate, channels);
+                return new IIRFloat(bands, rate, channels);
+            default:
+                throw new IllegalArgumentException("Unsupported precision");
+        }
+    }
+
+    /**
+     * Creates the fastest equalizer engine of given precision and custom band layout.
+     *
+     * @param layout    is the band layout
+     * @param rate      is the sample rate of equalizer
+     * @param channels  is the number of channels
+     * @param precision is EQ_DOUBLE_PRECISION or EQ_FLOAT_PRECISION
+     * @return new equalizer engine
+     * @see #newInstance(int, float, int, int)
+     */
+    public static AbstractIIR newInstance(IIRBandLayout layout, float rate, int channels, int precision) {
+        switch (precision) {
+            case EQ_DOUBLE_PRECISION:
+                if (VECTOR_ENGINE != null)
+                    return newInstance(VECTOR_ENGINE, IIRBandLayout.class, layout, rate, channels);
+                return new IIR(layout, rate, channels);
+            case EQ_FLOAT_PRECISION:
+                if (FLOAT_VECTOR_ENGINE != null)
+                    return newInstance(FLOAT_VECTOR_ENGINE, IIRBandLayout.class, layout, rate, channels);
+                return new IIRFloat(layout, rate, channels);
+            default:
+                throw new IllegalArgumentException("Unsupported precision");
+        }
+    }
+
+    private static AbstractIIR newInstance(Class<?> engine, Class<?> bandsType, Object bands, float rate, int channels) {
+        try {
+            return (AbstractIIR) engine.getConstructor(bandsType, float.class, int.class).newInstance(bands, rate, channels);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Tests if the vectorized engines are available in this JVM
+     *
+     * @return true if newInstance creates vectorized engines
+     */
+    public static boolean isVectorSupported() {
+        return VECTOR_ENGINE != null;
+    }
+
+    private static Class<?> findVectorEngine(String name) {
+        if ("false".equals(System.getProperty("davaguine.jeq.vector")))
+            return null;
+        try {
+            Class<?> engine = Class.forName(name);
+            if (!((Boolean) engine.getMethod("isSupported").invoke(null)))
+                return null;
+            return engine;
+        } catch (Throwable t) {
+            /* Older JVM or the incubator module isn't there */
+            return null;
+        }
+    }
+
+    /**
+     * Returns Controls of equalizer
+     *
+     * @return Controls of equalizer
+     */
+    public IIRControls getControls() {
+        return eqcfg;
+    }
+
+    /**
+     * This is special method for checking of supported parameters of equalizer
+     *
+     * @param bands    is the number of bands
+     * @param rate     is the sample rate of data
+     * @param channels is the number of channels
+     * @return true if parameters are supported
+     */
+    public static boolean isParamsSupported(int bands, float rate, int channels) {
+        if (!(rate > 0))
+            return false;
+
+        switch (bands) {
+            case EQ_10_BANDS:
+            case EQ_15_BANDS:
+            case EQ_25_BANDS:
+            case EQ_31_BANDS:
+                break;
+            default:
+                return false;
+        }
+
+        return isChannelsSupported(channels) && IIRCoefficientSet.isSupported(bands, rate);
+    }
+
+    /**
+     * This is special method for checking of supported parameters of equalizer
+     * with custom band layout
+     *
+     * @param layout   is the band layout
+     * @param rate     is the sample rate of data
+     * @param channels is the number of channels
+     * @return true if parameters are supported
+     */
+    public static boolean isParamsSupported(IIRBandLayout layout, float rate, int channels) {
+        return isChannelsSupported(channels) && IIRCoefficientSet.isSupported(layout, rate);
+    }
+
+    private static boolean isChannelsSupported(int channels) {
+        return channels > 0;
+    }
+
+    /**
+     * Returns coefficients of this equalizer
+     *
+     * @return the shared coefficient set
+     */
+    public IIRCoefficientSet getCoefficients() {
+        return coefficients;
+    }
+
+    /**
+     * Enables or disables cascaded filtering. In cascaded mode the output of
+     * every band filter is filtered once more by the same band filter. That
+     * gives sharper band separation (twice steeper skirts, same gain at the
+     * centre frequency) at the expense of twice the CPU cycles. The second
+     * stage starts from silence each time the mode is switched on.
+     *
+     * @param cascade is true to run two filter stages per band
+     */
+    public void setCascade(boolean cascade) {
+        if (cascade && !this.cascade)
+            initCascade();
+        this.cascade = cascade;
+    }
+
+    /**
+     * Tests if cascaded filtering is enabled
+     *
+     * @return true if two filter stages per band are used
+     */
+    public boolean isCascade() {
+        return cascade;
+    }
+
+    /**
+     * Tests if this engine can ramp the gains, see setRamp. The scalar IIR
+     * (and IIRParallel) can; the vectorized and the float engines can't.
+     *
+     * @return true if setRamp accepts ramps longer than 0
+     */
+    public boolean isRampSupported() {
+        return false;
+    }
+
+    /**
+     * Sets ramping of the band gains and the preamp: when the controls
+     * change, the gains move to the new values sample by sample over given
+     * number of frames instead of jumping at the next block. Engines which
+     * can't ramp (see isRampSupported) accept only length 0, the default,
+     * where the gains jump.
+     *
+     * @param length is the length of the ramp in frames, 0 for no ramp
+     * @param shape  is RAMP_LINEAR or RAMP_EXPONENTIAL
+     * @throws IllegalStateException if length is not 0 and the engine can't ramp
+     */
+    public void setRamp(int length, int shape) {
+        if (length < 0 || (shape != RAMP_LINEAR && shape != RAMP_EXPONENTIAL))
+            throw new IllegalArgumentException("Unsupported parameters");
+        if (length > 0)
+            throw new IllegalStateException("Gain ramping is not supported by " + getClass().getName());
+    }
+
+    /**
+     * Returns the length of the ramp
+     *
+     * @return the length of the ramp in frames, 0 if there is no ramp
+     */
+    public int getRampLength() {
+        return 0;
+    }
+
+    /**
+     * Returns the shape of the ramp
+     *
+     * @return RAMP_LINEAR or RAMP_EXPONENTIAL
+     */
+    public int getRampShape() {
+        return RAMP_LINEAR;
+    }
+
+    /**
+     * Tests if the gains are moving to new values
+     *
+     * @return true if a ramp is in progress
+     */
+    public boolean isRamping() {
+        return false;
+    }
+
+    /**
+     * Enables or disables the denormal protection. After the input stops the
+     * filter history decays towards zero and, many seconds later for the low
+     * bands, reaches the denormal range of floating point numbers, where
+     * every arithmetic operation is many times slower. With the protection
+     * on, the values of the history below DENORMAL_THRESHOLD are set to zero
+     * every 256 frames, in the float precision engines the values below
+     * FLOAT_DENORMAL_THRESHOLD every block, so the cost of a sample stays the
+     * same through silence. Such values are far below the resolution of any
+     * sample format, the output doesn't change. The protection is on by
+     * default.
+     *
+     * @param protection is true to flush tiny values of the filter history to zero
+     */
+    public void setDenormalProtection(boolean protection) {
+        denormalprotection = protection;
+    }
+
+    /**
+     * Tests if the denormal protection is enabled
+     *
+     * @return true if tiny values of the filter history are flushed to zero
+     */
+    public boolean isDenormalProtection() {
+        return denormalprotection;
+    }
+
+    /**
+     * Counts the frames of a block and, when flushinterval frames have been
+     * counted since the last time, flushes the tiny values of the filter
+     * history to zero. Called once per block before filtering.
+     * The decay from the threshold down to the denormal range takes at
+     * least 900 frames in double and 70 frames in float with the built-in
+     * layouts, so only a longer block may still end up with a few denormals
+     * in the fastest bands, which leave that range quickly.
+     *
+     * @param frames is the number of frames in the block
+     */
+    final void flushDenormals(int frames) {
+        if (denormalprotection && (unflushed += frames) >= flushinterval) {
+            unflushed = 0;
+            flushHistory();
+        }
+    }
+
+    /**
+     * Sets the values of the filter history below DENORMAL_THRESHOLD, or
+     * FLOAT_DENORMAL_THRESHOLD for float history, to zero
+     */
+    abstract void flushHistory();
+
+    /* Sets the values of given history array below DENORMAL_THRESHOLD to zero */
+    static void flush(double[] history) {
+        if (history == null)
+            return;
+        for (int i = 0; i < history.length; i++)
+            if (Math.abs(history[i]) < DENORMAL_THRESHOLD)
+                history[i] = 0;
+    }
+
+    /* Sets the values of given history array below FLOAT_DENORMAL_THRESHOLD to zero */
+    static void flush(float[] history) {
+        if (history == null)
+            return;
+        for (int i = 0; i < history.length; i++)
+            if (Math.abs(history[i]) < FLOAT_DENORMAL_THRESHOLD)
+                history[i] = 0;
+    }
+
+    /**
+     * Tests if the filter history has decayed so far that the output for
+     * silent input stays below given level from now on. The bound is the
+     * largest value of the history times the largest output a band filter
+     * can ring up to in free decay per unit of its history (see
+     * IIRCoefficientSet.getDecayPeaks), weighted by the band gains of the
+     * controls. Once it holds, silent input can pass through unfiltered and
+     * the history can be cleared without a difference above the level.
+     *
+     * @param level is the level in units of the samples, e.g. 0.5 for
+     *              half of the least significant bit of integer data
+     * @return true if the output for silence stays below the level
+     */
+    public boolean isDecayed(double level) {
+        double[] peaks = coefficients.getDecayPeaks(cascade);
+        float eqbands[][] = eqcfg.getSnapshot().bands;
+        double bound = 0;
+        for (int band = 0; band < bands; band++) {
+            float gain = 0;
+            for (int channel = 0; channel < channels; channel++)
+                gain = Math.max(gain, Math.abs(eqbands[band][channel]));
+            bound += gain * peaks[band];
+        }
+        /* The band outputs are scaled by 4 like in the filter */
+        return 4 * bound * getHistoryPeak() < level;
+    }
+
+    /**
+     * Lets given number of frames of silence pass the engine by while its
+     * history is empty. The output for them would be silence anyway, only
+     * the state which depends on time, like a ramp of the gains, has to
+     * move on.
+     *
+     * @param frames is the number of frames
+     */
+    void skipSilence(int frames) {
+    }
+
+    /**
+     * Returns the largest magnitude in the history of the band filters
+     * which contribute to the output
+     *
+     * @return the largest absolute value of the history
+     */
+    abstract double getHistoryPeak();
+
+    /* Largest absolute value of given history array from index from to index to - 1, at least peak */
+    static double peak(double[] history, int from, int to, double peak) {
+        for (int i = from; i < to; i++)
+            peak = Math.max(peak, Math.abs(history[i]));
+        return peak;
+    }
+
+    /* Largest absolute value of given history array from index from to index to - 1, at least peak */
+    static double peak(float[] history, int from, int to, double peak) {
+        for (int i = from; i < to; i++)
+            peak = Math.max(peak, Math.abs(history[i]));
+        return peak;
+    }
+
+    /**
+     * Returns the length of a pre-roll for chunked processing: a fresh engine
+     * with the settings of this one, which filters that many samples before
+     * a chunk, then gives the output of an engine which has filtered
+     * everything before the chunk, up to the tolerance.
+     * <p/>
+     * The band filters are stable, so the unknown start state of a fresh
+     * engine decays geometrically. The length is found by running the
+     * filter of every band on this decay from each possible start state,
+     * scaled by the largest state the band can reach (the sum of the
+     * absolute values of its impulse response). After the pre-roll the
+     * state of every band is within tolerance * |peak of input after preamp|
+     * of the exact one, so an output sample differs by at most
+     * 4 * tolerance * (sum of absolute band gains) * |peak input|, e.g. less
+     * than 0.25 of the least significant bit of 24-bit data for 31 bands
+     * and a tolerance of 2^-32. The output samples may still differ by one
+     * step of the sample format (1 LSB, or 1 ulp for floats) where the
+     * rounding falls differently.
+     * The length depends on the coefficients and the cascade mode, not
+     * on the gains.
+     *
+     * @param tolerance is the relative tolerance, e.g. 2^-32
+     * @return the number of samples per channel
+     */
+    public int getPrerollLength(double tolerance) {
+        int length = 0;
+        for (int band = 0; band < bands; band++)
+            length = Math.max(length, getPrerollLength(alpha[band], beta[band], gamma[band], cascade, tolerance));
+        /* The input history is exact after two samples */
+        return length + 2;
+    }
+
+    /* Pre-roll length of one band filter */
+    static int getPrerollLength(double a, double b, double g, boolean cascade, double tolerance) {
+        final int limit = 1 << 28;
+        /* Largest state of the band per unit of input: the L1 norm of its impulse responses */
+        double norm = 0, normy = 0;
+        double x1 = 0, x2 = 0, y1 = 0, y2 = 0, z1 = 0, z2 = 0, x, y, z;
+        for (int n = 0; n < limit; n++) {
+            x = n == 0 ? 1 : 0;
+            y = a * (x - x2) + g * y1 - b * y2;
+            z = cascade ? a * (y - y2) + g * z1 - b * z2 : 0;
+            normy += Math.abs(y);
+            norm += Math.abs(z);
+            x2 = x1;
+            x1 = x;
+            y2 = y1;
+            y1 = y;
+            z2 = z1;
+            z1 = z;
+            if (n > 2 && Math.abs(y1) + Math.abs(y2) + Math.abs(z1) + Math.abs(z2) < 1e-15 * (norm + normy))
+                break;
+        }
+        norm = Math.max(norm, normy);
+
+        /* Free decay from a unit error in each of the state variables (y1, y2, z1, z2) */
+        int states = cascade ? 4 : 2;
+        double[] sy1 = new double[states], sy2 = new double[states], sz1 = new double[states], sz2 = new double[states];
+        sy1[0] = 1;
+        sy2[1] = 1;
+        if (cascade) {
+            sz1[2] = 1;
+            sz2[3] = 1;
+        }
+        int last = 0;
+        for (int n = 0; n < limit; n++) {
+            double error = 0, state = 0;
+            for (int k = 0; k < states; k++) {
+                y = g * sy1[k] - b * sy2[k];
+                z = cascade ? a * (y - sy2[k]) + g * sz1[k] - b * sz2[k] : y;
+                sy2[k] = sy1[k];
+                sy1[k] = y;
+                sz2[k] = sz1[k];
+                sz1[k] = z;
+                error += Math.abs(z);
+                state += Math.abs(sy1[k]) + Math.abs(sy2[k]) + Math.abs(sz1[k]) + Math.abs(sz2[k]);
+            }
+            if (norm * error > tolerance)
+                last = n + 1;
+            /* The whole state is negligible, the error can't grow back above tolerance */
+            if (norm * state < tolerance / 1024)
+                return last;
+        }
+        return limit;
+    }
+
+    /* Largest output of one band filter in free decay per unit of its largest history value */
+    static double getDecayPeak(double a, double b, double g, boolean cascade) {
+        final int limit = 1 << 28;
+        /* Free decay from a unit value of each of the history variables (x1, x2, y1, y2 and the second stage) */
+        int states = cascade ? 8 : 4;
+        double[] x1 = new double[states], x2 = new double[states], y1 = new double[states], y2 = new double[states];
+        double[] cx1 = new double[states], cx2 = new double[states], cy1 = new double[states], cy2 = new double[states];
+        x1[0] = 1;
+        x2[1] = 1;
+        y1[2] = 1;
+        y2[3] = 1;
+        if (cascade) {
+            cx1[4] = 1;
+            cx2[5] = 1;
+            cy1[6] = 1;
+            cy2[7] = 1;
+        }
+        double peak = 0, y, z;
+        for (int n = 0; n < limit; n++) {
+            double out = 0, state = 0;
+            for (int k = 0; k < states; k++) {
+                y = -a * x2[k] + g * y1[k] - b * y2[k];
+                x2[k] = x1[k];
+                x1[k] = 0;
+                y2[k] = y1[k];
+                y1[k] = y;
+                if (cascade) {
+                    z = a * (y - cx2[k]) + g * cy1[k] - b * cy2[k];
+                    cx2[k] = cx1[k];
+                    cx1[k] = y;
+                    cy2[k] = cy1[k];
+                    cy1[k] = z;
+                    y = z;
+                }
+                out += Math.abs(y);
+                state += Math.abs(x1[k]) + Math.abs(x2[k]) + Math.abs(y1[k]) + Math.abs(y2[k])
+                        + Math.abs(cx1[k]) + Math.abs(cx2[k]) + Math.abs(cy1[k]) + Math.abs(cy2[k]);
+            }
+            peak = Math.max(peak, out);
+            /* What is left can't ring up to a noticeable part of the peak */
+            if (state < 1e-9)
+                break;
+        }
+        return peak;
+    }
+
+    /**
+     * Allocates (or clears) history of the second filter stage
+     */
+    abstract void initCascade();
+
+    /**
+     * Takes a snapshot of the controls: copies band gains of all channels into
+     * flat array indexed by [channel * stride + band] and keeps the preamp of
+     * the same snapshot in preamp
+     *
+     * @param gain   is the destination array
+     * @param stride is the distance between channels in the array
+     */
+    void loadGains(double[] gain, int stride) {
+        IIRControls.Snapshot values = eqcfg.getSnapshot();
+        loadGains(values, gain, stride);
+        preamp = values.preamp;
+    }
+
+    /**
+     * Copies band gains of all channels of given snapshot into flat array
+     * indexed by [channel * stride + band]
+     *
+     * @param values is the snapshot of the controls
+     * @param gain   is the destination array
+     * @param stride is the distance between channels in the array
+     */
+    void loadGains(IIRControls.Snapshot values, double[] gain, int stride) {
+        float eqbands[][] = values.bands;
+        for (int channel = 0; channel < channels; channel++)
+            for (int band = 0; band < bands; band++)
+                gain[channel * stride + band] = eqbands[band][channel];
+    }
+
+    /**
+     * Takes a snapshot of the controls: copies band gains of all channels into
+     * flat array indexed by [channel * stride + band] and keeps the preamp of
+     * the same snapshot in preamp
+     *
+     * @param gain   is the destination array
+     * @param stride is the distance between channels in the array
+     */
+    void loadGains(float[] gain, int stride) {
+        IIRControls.Snapshot values = eqcfg.getSnapshot();
+        float eqbands[][] = values.bands;
+        preamp = values.preamp;
+        for (int channel = 0; channel < channels; channel++)
+            for (int band = 0; band < bands; band++)
+                gain[channel * stride + band] = eqbands[band][channel];
+    }
+
+    /**
+     * Clear filter history.
+     */
+    public abstract void cleanHistory();
+
+    /**
+     * Main filtering method.
+     *
+     * @param data   - data to be filtered
+     * @param length - length of data in buffer
+     */
+    public abstract void iir(int[] data, int length);
+
+    /**
+     * Filtering method for float samples, e.g. PCM_FLOAT data in -1..1.
+     * The filter is linear, so the samples go in as they are: there is no
+     * conversion to int and the result is not clamped.
+     *
+     * @param data   - data to be filtered
+     * @param length - length of data in buffer
+     */
+    public abstract void iir(float[] data, int length);
+
+    /**
+     * Filtering method for planar (deinterleaved) data: one array per channel.
+     * Engines which filter channel by channel override it and run over the
+     * samples and the band history of every channel contiguously; the others
+     * interleave the data and call iir(int[], int).
+     *
+     * @param data   - data to be filtered, data[channel][offset .. offset + length - 1]
+     * @param offset - index of the first sample in every channel
+     * @param length - number of samples in every channel
+     */
+    public void iir(int[][] data, int offset, int length) {
+        int channels = this.channels;
+        int[] buf = interleaved;
+        if (buf == null || buf.length < length * channels)
+            interleaved = buf = new int[length * channels];
+        for (int channel = 0; channel < channels; channel++) {
+            int[] p = data[channel];
+            for (int i = 0, index = channel; i < length; i++, index += channels)
+                buf[index] = p[offset + i];
+        }
+        iir(buf, length * channels);
+        for (int channel = 0; channel < channels; channel++) {
+            int[] p = data[channel];
+            for (int i = 0, index = channel; i < length; i++, index += channels)
+                p[offset + i] = buf[index];
+        }
+    }
+
+    /**
+     * Decodes, filters and encodes whole frames of PCM bytes in one pass,
+     * without an int buffer in between. The input and output may be the
+     * same region of the same array.
+     *
+     * @param in     is the source pcm data
+     * @param inoff  is the index of the first source byte
+     * @param out    is the destination array
+     * @param outoff is the index of the first destination byte
+     * @param frames is the number of frames
+     * @param format is the format of the data
+     * @return false if the engine has no fused code for its current mode,
+     *         nothing is done then
+     */
+    boolean iir(byte[] in, int inoff, byte[] out, int outoff, int frames, SampleConverter format) {
+        return false;
+    }
+
+    /**
+     * Tests if iir(int[][], int, int) is faster than iir(int[], int)
+     * with this engine, so callers which can produce both layouts
+     * should prefer the planar one
+     *
+     * @return true if planar data is preferred
+     */
+    public boolean isPlanarPreferred() {
+        return false;
+    }
+}
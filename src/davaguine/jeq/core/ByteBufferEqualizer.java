@@ -0,0 +1,106 @@
+/*
+ *  21.04.2004 Original verion. davagin@udm.ru.
+ *-----------------------------------------------------------------------
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *----------------------------------------------------------------------
+ */
+package davaguine.jeq.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Equalizes PCM data in place in a ByteBuffer, heap or direct one.
+ * The samples between position and limit are filtered in the byte order
+ * of the buffer; position and limit are not changed. The filter history
+ * is carried from one call to the next, so a stream can be processed
+ * buffer by buffer.
+ * <p/>
+ * The bytes are equalized by an EqualizerProcessor for the byte order of
+ * the buffer: a heap buffer in place in its backing array, any other one,
+ * like a direct or mapped buffer, with absolute gets and puts on the
+ * buffer itself, without copying the bytes into an array.
+ */
+public class ByteBufferEqualizer {
+    private final AbstractIIR iir;
+    /* Processors for little and big endian data, sharing the engine */
+    private final EqualizerProcessor little;
+    private final EqualizerProcessor big;
+    /* size of one frame (a sample of every channel) in bytes */
+    private final int framesize;
+
+    /**
+     * Constructs new ByteBufferEqualizer object
+     *
+     * @param samplerate is a sample rate of data
+     * @param channels   is the number of channels
+     * @param signed     represents pcm data as signed or unsigned
+     * @param samplesize is the size of sample in bits (8, 16, 24 or 32)
+     * @param bands      is the number of bands
+     */
+    public ByteBufferEqualizer(float samplerate, int channels, boolean signed, int samplesize, int bands) {
+        this(AbstractIIR.newInstance(bands, samplerate, channels), signed, samplesize);
+    }
+
+    /**
+     * Constructs new ByteBufferEqualizer object with given equalizer engine
+     *
+     * @param iir        is the equalizer engine, its sample rate and number of channels have to match the data
+     * @param signed     represents pcm data as signed or unsigned
+     * @param samplesize is the size of sample in bits (8, 16, 24 or 32)
+     */
+    public ByteBufferEqualizer(AbstractIIR iir, boolean signed, int samplesize) {
+        this(iir, signed ? EqualizerInputStream.PCM_SIGNED : EqualizerInputStream.PCM_UNSIGNED, samplesize);
+    }
+
+    /**
+     * Constructs new ByteBufferEqualizer object with given encoding of the data
+     *
+     * @param iir        is the equalizer engine, its sample rate and number of channels have to match the data
+     * @param encoding   is EqualizerInputStream.PCM_SIGNED, PCM_UNSIGNED or PCM_FLOAT
+     * @param samplesize is the size of sample in bits: 8, 16, 24 or 32 for integers, 32 or 64 for floats
+     */
+    public ByteBufferEqualizer(AbstractIIR iir, int encoding, int samplesize) {
+        this.iir = iir;
+        this.little = new EqualizerProcessor(iir, encoding, samplesize, false);
+        this.big = new EqualizerProcessor(iir, encoding, samplesize, true);
+        this.framesize = samplesize / 8 * iir.channels;
+    }
+
+    /**
+     * Returns Controls of equalizer
+     *
+     * @return Controls of equalizer
+     */
+    public IIRControls getControls() {
+        return iir.getControls();
+    }
+
+    /**
+     * Equalizes the data between position and limit of the buffer in place.
+     * Only whole frames are processed, an incomplete frame at the end is left as is.
+     *
+     * @param buffer is the buffer with pcm data
+     * @return the number of bytes processed
+     */
+    public int process(ByteBuffer buffer) {
+        EqualizerProcessor processor = buffer.order() == ByteOrder.BIG_ENDIAN ? big : little;
+        int pos = buffer.position();
+        int len = (buffer.limit() - pos) / framesize * framesize;
+        if (buffer.hasArray())
+            return processor.process(buffer.array(), buffer.arrayOffset() + pos, len);
+        return processor.process(buffer, pos, len);
+    }
+}
@@ -29,20 +29,56 @@ import java.io.InputStream;
  */
 public class EqualizerInputStream extends InputStream {
     private InputStream stream;
-    private IIR iir;
+    private AbstractIIR iir;
 
-    private final static int BUFFER_SIZE = 65536;
-    private byte[] inbuf = new byte[BUFFER_SIZE];
-    private int[] workbuf = new int[BUFFER_SIZE];
-    private byte[] outbuf = new byte[BUFFER_SIZE];
+    /**
+     * Signed integer pcm data
+     */
+    public final static int PCM_SIGNED = 0;
+    /**
+     * Unsigned integer pcm data
+     */
+    public final static int PCM_UNSIGNED = 1;
+    /**
+     * IEEE float pcm data, 32 or 64-bit
+     */
+    public final static int PCM_FLOAT = 2;
+
+    /**
+     * Default size of the buffers in bytes
+     */
+    public final static int DEFAULT_BUFFER_SIZE = 65536;
+    /* inbuf and outbuf are ring buffers, the data starts at inpos/outpos and may wrap around */
+    private byte[] inbuf;
+    private int[] workbuf;
+    /* Work buffer of float data */
+    private float[] floatbuf;
+    /* Planar work buffer, allocated when the engine prefers planar data */
+    private int[][] planar;
+    private byte[] outbuf;
     private int inpos = 0;
     private int inlen = 0;
     private int outpos = 0;
     private int outlen = 0;
+    /* used part of the ring buffers, a multiple of the frame size so frames never wrap */
+    private int capacity;
+    /* filter whatever the underlying stream returns instead of waiting for the caller's amount */
+    private boolean lowlatency;
+
+    private SampleConverter converter;
+    /* size of one frame (a sample of every channel) in bytes */
+    private int framesize;
 
-    private boolean signed;
-    private int samplesize;
-    private boolean bigendian;
+    /* silent blocks pass through unfiltered once the filter history has decayed */
+    private boolean silencebypass = true;
+    /* the filter history is inaudible and has been cleared, silence passes through */
+    private boolean decayed;
+    /* level below which the output for silence counts as inaudible, in units of the samples */
+    private final double inaudible;
+    /* counters of the frames filtered and of the silent blocks and frames passed through */
+    private long filteredframes;
+    private long silentblocks;
+    private long silentframes;
 
     /**
      * Constructs new EqualizerInputStream object
@@ -56,14 +92,95 @@ public class EqualizerInputStream extends InputStream {
      * @param bands      is the number of bands
      */
     public EqualizerInputStream(InputStream stream, float samplerate, int channels, boolean signed, int samplesize, boolean bigendian, int bands) {
-        this.stream = stream;
-        this.iir = new IIR(bands, samplerate, channels);
-        this.signed = signed;
-        this.samplesize = samplesize;
-        this.bigendian = bigendian;
+        this(stream, samplerate, channels, signed, samplesize, bigendian, bands, AbstractIIR.EQ_DOUBLE_PRECISION);
+    }
+
+    /**
+     * Constructs new EqualizerInputStream object with given filter precision
+     *
+     * @param stream     is an input stream for pcm data
+     * @param samplerate is a sample rate of input data
+     * @param channels   is the number of channels
+     * @param signed     indicates that the data is signed
+     * @param samplesize is the sample bit size of data
+     * @param bigendian  indicates that the dat is in "big endian" encoding
+     * @param bands      is the number of bands
+     * @param precision  is AbstractIIR.EQ_DOUBLE_PRECISION or AbstractIIR.EQ_FLOAT_PRECISION
+     */
+    public EqualizerInputStream(InputStream stream, float samplerate, int channels, boolean signed, int samplesize, boolean bigendian, int bands, int precision) {
+        this(stream, AbstractIIR.newInstance(bands, samplerate, channels, precision), signed, samplesize, bigendian);
+    }
 
-        if (!isParamsSupported(samplerate, channels, samplesize, bands))
-            throw new IllegalArgumentException("Unsupported sample bit size");
+    /**
+     * Constructs new EqualizerInputStream object with given equalizer engine,
+     * e.g. IIRParallel for streams with many channels
+     *
+     * @param stream     is an input stream for pcm data
+     * @param iir        is the equalizer engine, its sample rate and number of channels have to match the data
+     * @param signed     represents pcm data as signed or unsigned
+     * @param samplesize is the size of sample in bits
+     * @param bigendian  represents pcm data as big endian or little endian
+     */
+    public EqualizerInputStream(InputStream stream, AbstractIIR iir, boolean signed, int samplesize, boolean bigendian) {
+        this(stream, iir, signed, samplesize, bigendian, DEFAULT_BUFFER_SIZE, false);
+    }
+
+    /**
+     * Constructs new EqualizerInputStream object with given equalizer engine
+     * and buffering. The buffer size bounds the latency of the stream (see
+     * getLatency), e.g. 1764 bytes are 10 ms of 44.1 kHz stereo 16-bit data.
+     * In low latency mode a read filters whatever the underlying stream
+     * returned (at least one frame) and returns without waiting for more,
+     * which suits live sources like a line-in.
+     *
+     * @param stream     is an input stream for pcm data
+     * @param iir        is the equalizer engine, its sample rate and number of channels have to match the data
+     * @param signed     represents pcm data as signed or unsigned
+     * @param samplesize is the size of sample in bits
+     * @param bigendian  represents pcm data as big endian or little endian
+     * @param buffersize is the size of the buffers in bytes, it is rounded down to whole frames
+     * @param lowlatency enables low latency mode
+     */
+    public EqualizerInputStream(InputStream stream, AbstractIIR iir, boolean signed, int samplesize, boolean bigendian, int buffersize, boolean lowlatency) {
+        this(stream, iir, signed ? PCM_SIGNED : PCM_UNSIGNED, samplesize, bigendian, buffersize, lowlatency);
+    }
+
+    /**
+     * Constructs new EqualizerInputStream object with given encoding of the
+     * data. PCM_FLOAT data is filtered as float, without conversion to int;
+     * 64-bit samples are narrowed to float.
+     *
+     * @param stream     is an input stream for pcm data
+     * @param iir        is the equalizer engine, its sample rate and number of channels have to match the data
+     * @param encoding   is PCM_SIGNED, PCM_UNSIGNED or PCM_FLOAT
+     * @param samplesize is the size of sample in bits: 8, 16, 24 or 32 for integers, 32 or 64 for floats
+     * @param bigendian  represents pcm data as big endian or little endian
+     * @param buffersize is the size of the buffers in bytes, it is rounded down to whole frames
+     * @param lowlatency enables low latency mode
+     */
+    public EqualizerInputStream(InputStream stream, AbstractIIR iir, int encoding, int samplesize, boolean bigendian, int buffersize, boolean lowlatency) {
+        if (!isFormatSupported(encoding, iir.channels, samplesize, buffersize))
+            throw new IllegalArgumentException("Unsupported encoding, sample bit size or buffer size");
+
+        this.stream = stream;
+        this.iir = iir;
+        this.converter = new SampleConverter(encoding != PCM_UNSIGNED, encoding == PCM_FLOAT, samplesize, bigendian);
+        this.framesize = samplesize / 8 * iir.channels;
+        this.capacity = buffersize - buffersize % framesize;
+        this.lowlatency = lowlatency;
+        /*
+         * 2^-8 of the least significant bit, 2^-24 of full scale for floats.
+         * The rest left in the history when it is cleared adds less than
+         * that to the following samples, so it can hardly move one across
+         * a rounding boundary.
+         */
+        this.inaudible = encoding == PCM_FLOAT ? 1.0 / (1 << 24) : 1.0 / (1 << 8);
+        this.inbuf = new byte[capacity];
+        this.outbuf = new byte[capacity];
+        if (encoding == PCM_FLOAT)
+            this.floatbuf = new float[capacity / (samplesize / 8)];
+        else
+            this.workbuf = new int[capacity];
     }
 
     /**
@@ -85,175 +202,240 @@ public class EqualizerInputStream extends InputStream {
      * @return true if parameters are supported
      */
     public static boolean isParamsSupported(float samplerate, int channels, int samplesize, int bands) {
-        switch (samplesize) {
-            case 8:
-            case 16:
-            case 24:
-                break;
-            default:
-                return false;
-        }
+        return isParamsSupported(samplerate, channels, PCM_SIGNED, samplesize, bands);
+    }
 
-        return IIR.isParamsSupported(bands, samplerate, channels);
+    /**
+     * This is special method for checking of supported parameters of equalizer
+     *
+     * @param samplerate is the sample rate of data
+     * @param channels   is the number of channels
+     * @param encoding   is PCM_SIGNED, PCM_UNSIGNED or PCM_FLOAT
+     * @param samplesize is the size of sample in bits
+     * @param bands      is the number of bands
+     * @return true if parameters are supported
+     */
+    public static boolean isParamsSupported(float samplerate, int channels, int encoding, int samplesize, int bands) {
+        return isFormatSupported(encoding, channels, samplesize, DEFAULT_BUFFER_SIZE) && IIR.isParamsSupported(bands, samplerate, channels);
     }
 
-    private boolean fillInBuffer() throws IOException {
-        if (inpos != 0 && inlen > 0)
-            System.arraycopy(inbuf, inpos, inbuf, 0, inlen);
-        inpos = 0;
+    private static boolean isFormatSupported(int encoding, int channels, int samplesize, int buffersize) {
+        if (encoding != PCM_SIGNED && encoding != PCM_UNSIGNED && encoding != PCM_FLOAT)
+            return false;
+        if (!SampleConverter.isSupported(encoding == PCM_FLOAT, samplesize))
+            return false;
+
+        /* At least one frame has to fit into the buffers */
+        return channels > 0 && channels <= buffersize / (samplesize / 8);
+    }
+
+    /**
+     * Returns the longest time the data can spend in the stream, in
+     * milliseconds: the duration of the buffer. The filters themselves don't
+     * delay the signal. In low latency mode the actual delay is set by the
+     * amount the underlying stream returns per read.
+     *
+     * @return latency in milliseconds
+     */
+    public float getLatency() {
+        return capacity / framesize * 1000f / iir.rate;
+    }
+
+    /**
+     * Returns the size of the buffers in bytes, a multiple of the frame size
+     *
+     * @return buffer size
+     */
+    public int getBufferSize() {
+        return capacity;
+    }
+
+    /**
+     * Tests if the stream is in low latency mode
+     *
+     * @return true if the stream is in low latency mode
+     */
+    public boolean isLowLatency() {
+        return lowlatency;
+    }
+
+    /**
+     * Enables or disables the pass through of silence. Blocks of digital
+     * silence (every sample is zero) are copied to the output unfiltered
+     * once the filter history has decayed so far that the equalizer would
+     * give less than 2^-8 of the least significant bit for them (2^-24 of
+     * full scale for float data), see AbstractIIR.isDecayed. The history is
+     * cleared then, so the sound after the silence starts from empty
+     * history. The output is not always identical to the filtered one:
+     * the rounding of the filter arithmetic goes its own way from the
+     * cleared history on, and for 32-bit samples, where the double
+     * precision rounding is close to the LSB, a few samples after a gap
+     * may differ by 1 LSB. It is enabled by default.
+     *
+     * @param bypass is true to pass silence through
+     */
+    public void setSilenceBypass(boolean bypass) {
+        silencebypass = bypass;
+        decayed = false;
+    }
+
+    /**
+     * Tests if the pass through of silence is enabled
+     *
+     * @return true if silence passes through
+     */
+    public boolean isSilenceBypass() {
+        return silencebypass;
+    }
+
+    /**
+     * Returns the number of frames which went through the equalizer
+     *
+     * @return the number of filtered frames
+     */
+    public long getFilteredFrames() {
+        return filteredframes;
+    }
+
+    /**
+     * Returns the number of silent blocks which passed through unfiltered
+     *
+     * @return the number of silent blocks
+     */
+    public long getSilentBlocks() {
+        return silentblocks;
+    }
+
+    /**
+     * Returns the number of frames of silence which passed through unfiltered
+     *
+     * @return the number of silent frames
+     */
+    public long getSilentFrames() {
+        return silentframes;
+    }
+
+    /**
+     * Reads input until at least need bytes are buffered. Never asks the
+     * underlying stream for more than want bytes in total.
+     *
+     * @param need is the number of bytes to wait for
+     * @param want is the number of bytes to ask for, not less than need and not more than capacity
+     * @return true if the end of the stream is reached
+     * @throws IOException if an I/O error occurs
+     */
+    private boolean fillInBuffer(int need, int want) throws IOException {
+        if (inlen == 0)
+            inpos = 0;
         int num;
-        boolean eof = false;
-        while (inlen != inbuf.length) {
-            num = stream.read(inbuf, inlen, inbuf.length - inlen);
-            if (num < 0) {
-                eof = true;
-                break;
-            }
+        while (inlen < need) {
+            int end = inpos + inlen;
+            int wpos = end < capacity ? end : end - capacity;
+            num = (wpos >= inpos ? capacity : inpos) - wpos;
+            num = stream.read(inbuf, wpos, want - inlen < num ? want - inlen : num);
+            if (num < 0)
+                return true;
             inlen += num;
         }
-        return eof;
+        return false;
     }
 
+    /**
+     * Filters buffered input into the free space of the output buffer
+     */
     private void fillOutBuffer() {
-        if (outpos != 0 && outlen > 0)
-            System.arraycopy(outbuf, outpos, outbuf, 0, outlen);
-        outpos = 0;
-        int len = outbuf.length - outlen;
-        len = inlen < len ? inlen : len;
-        len = convertToInt(len);
-        if (len > 0) {
-            iir.iir(workbuf, len);
-            len = convertToByte(outbuf, outlen, len);
+        if (outlen == 0)
+            outpos = 0;
+        while (true) {
+            int end = outpos + outlen;
+            int wpos = end < capacity ? end : end - capacity;
+            int len = (wpos >= outpos && outlen < capacity ? capacity : outpos) - wpos;
+            int run = capacity - inpos;
+            run = inlen < run ? inlen : run;
+            len = run < len ? run : len;
+            /* Filter whole frames only, so every block starts with the first channel */
+            len -= len % framesize;
+            if (len == 0)
+                return;
+            filter(inpos, outbuf, wpos, len);
+            inpos += len;
+            if (inpos == capacity)
+                inpos = 0;
+            inlen -= len;
             outlen += len;
         }
     }
 
-    private int convertToInt(int length) {
-        int l = length;
-        int temp;
-        byte a1[];
-        switch (samplesize) {
-            case 8: {
-                if (length > 0) {
-                    System.arraycopy(inbuf, 0, workbuf, 0, length);
-                    inpos += length;
-                    inlen -= length;
-                }
-                break;
-            }
-            case 16: {
-                l = length >> 1;
-                if (l > 0) {
-                    if (bigendian)
-                        for (int i = 0; i < l; i++) {
-                            temp = (((a1 = inbuf)[inpos++] & 0xff) << 8) | (a1[inpos++] & 0xff);
-                            workbuf[i] = signed && temp > 32767 ? temp - 65536 : temp;
-                        }
-                    else
-                        for (int i = 0; i < l; i++) {
-                            temp = ((a1 = inbuf)[inpos++] & 0xff) | ((a1[inpos++] & 0xff) << 8);
-                            workbuf[i] = signed && temp > 32767 ? temp - 65536 : temp;
-                        }
-                    inlen -= inpos;
-                }
-                break;
-            }
-            case 24: {
-                l = length / 3;
-                if (l > 0) {
-                    if (bigendian)
-                        for (int i = 0; i < l; i++) {
-                            temp = ((a1 = inbuf)[inpos++] & 0xff) | ((a1[inpos++] & 0xff) << 8) | ((a1[inpos++] & 0xff) << 16);
-                            workbuf[i] = signed && temp > 8388607 ? temp - 16777216 : temp;
-                        }
-                    else
-                        for (int i = 0; i < l; i++) {
-                            temp = (((a1 = inbuf)[inpos++] & 0xff) << 16) | ((a1[inpos++] & 0xff) << 8) | (a1[inpos++] & 0xff);
-                            workbuf[i] = signed && temp > 8388607 ? temp - 16777216 : temp;
-                        }
-                    inlen -= inpos;
-                }
-                break;
-            }
+    /* Filters len bytes of inbuf at inoff into out at outoff */
+    private void filter(int inoff, byte[] out, int outoff, int len) {
+        if (silencebypass && converter.isSilent(inbuf, inoff, len) && isDecayed()) {
+            System.arraycopy(inbuf, inoff, out, outoff, len);
+            iir.skipSilence(len / framesize);
+            silentblocks++;
+            silentframes += len / framesize;
+            return;
         }
-        return l;
-    }
-
-    private int wrap8Bit(int data) {
-        if (data > 127)
-            data = 127;
-        else if (data < -128)
-            data = -128;
-        if (data < 0)
-            data += 256;
-        return data;
-    }
-
-    private int wrap16Bit(int data) {
-        if (data > 32767)
-            data = 32767;
-        else if (data < -32768)
-            data = -32768;
-        if (data < 0)
-            data += 65536;
-        return data;
-    }
-
-    private int wrap24Bit(int data) {
-        if (data > 8388607)
-            data = 8388607;
-        else if (data < -8388608)
-            data = -8388608;
-        if (data < 0)
-            data += 16777216;
-        return data;
-    }
-
-    private int convertToByte(byte[] b, int off, int length) {
-        int p = off;
-        int d;
-        switch (samplesize) {
-            case 8: {
-                for (int i = 0; i < length; i++)
-                    b[p++] = (byte) (wrap8Bit(workbuf[i]) & 0xff);
-                break;
-            }
-            case 16: {
-                if (bigendian) {
-                    for (int i = 0; i < length; i++) {
-                        d = wrap16Bit(workbuf[i]);
-                        b[p++] = (byte) ((d & 0xff00) >> 8);
-                        b[p++] = (byte) (d & 0xff);
-                    }
-                } else {
-                    for (int i = 0; i < length; i++) {
-                        d = wrap16Bit(workbuf[i]);
-                        b[p++] = (byte) (d & 0xff);
-                        b[p++] = (byte) ((d & 0xff00) >> 8);
-                    }
-                }
-                break;
-            }
-            case 24: {
-                if (bigendian) {
-                    for (int i = 0; i < length; i++) {
-                        d = wrap24Bit(workbuf[i]);
-                        b[p++] = (byte) (d & 0xff);
-                        b[p++] = (byte) ((d & 0xff00) >> 8);
-                        b[p++] = (byte) ((d & 0xff0000) >> 16);
-                    }
-                } else {
-                    for (int i = 0; i < length; i++) {
-                        d = wrap24Bit(workbuf[i]);
-                        b[p++] = (byte) ((d & 0xff0000) >> 16);
-                        b[p++] = (byte) ((d & 0xff00) >> 8);
-                        b[p++] = (byte) (d & 0xff);
-                    }
-                }
-                break;
-            }
+        decayed = false;
+        filteredframes += len / framesize;
+        if (converter.floating) {
+            int samples = converter.toFloat(inbuf, inoff, len, floatbuf);
+            iir.iir(floatbuf, samples);
+            converter.fromFloat(floatbuf, samples, out, outoff);
+        } else if (iir.isPlanarPreferred()) {
+            int channels = iir.channels;
+            int frames = len / framesize;
+            if (planar == null)
+                planar = new int[channels][capacity / framesize];
+            converter.toPlanar(inbuf, inoff, frames, channels, planar);
+            iir.iir(planar, 0, frames);
+            converter.fromPlanar(planar, frames, channels, out, outoff);
+        } else if (!iir.iir(inbuf, inoff, out, outoff, len / framesize, converter)) {
+            int samples = converter.toInt(inbuf, inoff, len, workbuf);
+            iir.iir(workbuf, samples);
+            converter.toByte(workbuf, samples, out, outoff);
         }
-        return p - off;
+    }
+
+    /**
+     * Tests if silence can pass through: the filter history has decayed below
+     * the inaudible level. The history is cleared the first time, so the
+     * equalizer continues as after endless silence and the following silent
+     * blocks need no test.
+     *
+     * @return true if silence can pass through
+     */
+    private boolean isDecayed() {
+        if (!decayed && iir.isDecayed(inaudible)) {
+            iir.cleanHistory();
+            decayed = true;
+        }
+        return decayed;
+    }
+
+    /**
+     * Makes output available for a read of len bytes. Pulls only the input
+     * which is missing for len bytes (whole frames, as much as fits into the
+     * output buffer). In low latency mode waits for one frame only.
+     *
+     * @param len is the number of bytes the caller wants
+     * @return false if there is no output and the end of the stream is reached
+     * @throws IOException if an I/O error occurs
+     */
+    private boolean fill(int len) throws IOException {
+        int need = len - outlen;
+        need += framesize - 1;
+        need -= need % framesize;
+        int space = capacity - outlen;
+        space -= space % framesize;
+        need = need < space ? need : space;
+        need = need < framesize ? framesize : need;
+        boolean eof = fillInBuffer(lowlatency ? framesize : need, need);
+        fillOutBuffer();
+        if (outlen == 0 && eof)
+            return false;
+        if (outlen == 0 && !eof)
+            throw new IOException("Impossible state");
+        return true;
     }
 
     /**
@@ -316,15 +498,11 @@ public class EqualizerInputStream extends InputStream {
      * @throws IOException if an I/O error occurs.
      */
     public int read() throws IOException {
-        if (outlen == 0) {
-            boolean eof = fillInBuffer();
-            fillOutBuffer();
-            if (outlen == 0 && eof)
-                return -1;
-            if (outlen == 0 && !eof)
-                throw new IOException("Impossible state");
-        }
-        int b = outbuf[outpos++];
+        if (outlen == 0 && !fill(1))
+            return -1;
+        int b = outbuf[outpos++] & 0xff;
+        if (outpos == capacity)
+            outpos = 0;
         outlen--;
         return b;
     }
@@ -379,23 +557,62 @@ public class EqualizerInputStream extends InputStream {
      * @throws NullPointerException if <code>b</code> is <code>null</code>.
      */
     public int read(byte[] b, int off, int len) throws IOException {
-        if (outlen < len) {
-            boolean eof = fillInBuffer();
-            fillOutBuffer();
-            if (outlen == 0 && eof)
-                return -1;
-            if (outlen == 0 && !eof)
-                throw new IOException("Impossible state");
-        }
+        if (outlen == 0 && len > 0 && len % framesize == 0)
+            return readDirect(b, off, len);
+        if ((lowlatency ? outlen == 0 && len > 0 : outlen < len) && !fill(len))
+            return -1;
         len = outlen < len ? outlen : len;
         if (len > 0) {
-            System.arraycopy(outbuf, outpos, b, off, len);
-            outpos += len;
+            int run = capacity - outpos;
+            if (len < run) {
+                System.arraycopy(outbuf, outpos, b, off, len);
+                outpos += len;
+            } else {
+                System.arraycopy(outbuf, outpos, b, off, run);
+                System.arraycopy(outbuf, 0, b, off + run, len - run);
+                outpos = len - run;
+            }
             outlen -= len;
         }
         return len;
     }
 
+    /**
+     * Filters input straight into the caller's array, bypassing the output
+     * buffer. Used when the output buffer is empty and len is a multiple of
+     * the frame size.
+     *
+     * @param b   the buffer into which the data is read
+     * @param off the start offset in array <code>b</code>
+     * @param len the maximum number of bytes to read, a multiple of the frame size
+     * @return the number of bytes read, or <code>-1</code> at the end of the stream
+     * @throws IOException if an I/O error occurs
+     */
+    private int readDirect(byte[] b, int off, int len) throws IOException {
+        len = len < capacity ? len : capacity;
+        boolean eof = fillInBuffer(lowlatency ? framesize : len, len);
+        int done = 0;
+        while (done < len) {
+            int run = capacity - inpos;
+            run = inlen < run ? inlen : run;
+            run = len - done < run ? len - done : run;
+            run -= run % framesize;
+            if (run == 0)
+                break;
+            filter(inpos, b, off + done, run);
+            inpos += run;
+            if (inpos == capacity)
+                inpos = 0;
+            inlen -= run;
+            done += run;
+        }
+        if (done == 0 && eof)
+            return -1;
+        if (done == 0 && !eof)
+            throw new IOException("Impossible state");
+        return done;
+    }
+
     /**
      * <p>The method <code>reset</code> for class <code>EqualizerInputStream</code>
      * does nothing except throw an <code>IOException</code>.
@@ -421,8 +638,10 @@ public class EqualizerInputStream extends InputStream {
      */
     public long skip(long n) throws IOException {
         int l;
+        if (n <= 0)
+            return 0;
         if (n <= outlen) {
-            outpos += n;
+            outpos = (int) ((outpos + n) % capacity);
             outlen -= n;
             return n;
         }
@@ -431,8 +650,10 @@ public class EqualizerInputStream extends InputStream {
         outlen = 0;
         outpos = 0;
         if (n <= inlen) {
-            inpos += n;
+            inpos = (int) ((inpos + n) % capacity);
             inlen -= n;
+            if (inpos % framesize != 0)
+                alignInBuffer();
             return l + n;
         }
         n -= inlen;
@@ -442,4 +663,23 @@ public class EqualizerInputStream extends InputStream {
         return stream.skip(n) + l;
     }
 
+    /**
+     * Moves the input to the start of the buffer after a skip which was not
+     * a multiple of the frame size, so no frame wraps around. The output
+     * buffer is empty at this point and holds the copy.
+     */
+    private void alignInBuffer() {
+        int run = capacity - inpos;
+        if (inlen <= run)
+            System.arraycopy(inbuf, inpos, outbuf, 0, inlen);
+        else {
+            System.arraycopy(inbuf, inpos, outbuf, 0, run);
+            System.arraycopy(inbuf, 0, outbuf, run, inlen - run);
+        }
+        byte[] buf = inbuf;
+        inbuf = outbuf;
+        outbuf = buf;
+        inpos = 0;
+    }
+
 }
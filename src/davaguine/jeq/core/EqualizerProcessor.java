@@ -0,0 +1,176 @@
+/*
+ *  21.04.2004 Original verion. davagin@udm.ru.
+ *-----------------------------------------------------------------------
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *----------------------------------------------------------------------
+ */
+package davaguine.jeq.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Equalizes blocks of PCM bytes in place. This is what EqualizerInputStream
+ * does without the stream around it: for callers which already hold the
+ * decoded data there are no intermediate buffers to fill and compact.
+ * The filter history is carried from one call to the next. Nothing is
+ * allocated per call as long as the same array is passed; 16, 32 and 64-bit
+ * samples of a different array than last time cost one small ByteBuffer
+ * view of it, so blocks from a pool of buffers allocate a view per call.
+ */
+public class EqualizerProcessor {
+    /* Size of the work block in samples */
+    private final static int BLOCK_SIZE = 4096;
+
+    private final AbstractIIR iir;
+    private final SampleConverter converter;
+    /* size of one frame (a sample of every channel) in bytes */
+    private final int framesize;
+    private int[] workbuf;
+    private float[] floatbuf;
+
+    /**
+     * Constructs new EqualizerProcessor object
+     *
+     * @param samplerate is a sample rate of data
+     * @param channels   is the number of channels
+     * @param signed     represents pcm data as signed or unsigned
+     * @param samplesize is the size of sample in bits (8, 16, 24 or 32)
+     * @param bigendian  represents pcm data as big endian or little endian
+     * @param bands      is the number of bands
+     */
+    public EqualizerProcessor(float samplerate, int channels, boolean signed, int samplesize, boolean bigendian, int bands) {
+        this(AbstractIIR.newInstance(bands, samplerate, channels), signed, samplesize, bigendian);
+    }
+
+    /**
+     * Constructs new EqualizerProcessor object with given equalizer engine
+     *
+     * @param iir        is the equalizer engine, its sample rate and number of channels have to match the data
+     * @param signed     represents pcm data as signed or unsigned
+     * @param samplesize is the size of sample in bits (8, 16, 24 or 32)
+     * @param bigendian  represents pcm data as big endian or little endian
+     */
+    public EqualizerProcessor(AbstractIIR iir, boolean signed, int samplesize, boolean bigendian) {
+        this(iir, signed ? EqualizerInputStream.PCM_SIGNED : EqualizerInputStream.PCM_UNSIGNED, samplesize, bigendian);
+    }
+
+    /**
+     * Constructs new EqualizerProcessor object with given encoding of the data
+     *
+     * @param iir        is the equalizer engine, its sample rate and number of channels have to match the data
+     * @param encoding   is EqualizerInputStream.PCM_SIGNED, PCM_UNSIGNED or PCM_FLOAT
+     * @param samplesize is the size of sample in bits: 8, 16, 24 or 32 for integers, 32 or 64 for floats
+     * @param bigendian  represents pcm data as big endian or little endian
+     */
+    public EqualizerProcessor(AbstractIIR iir, int encoding, int samplesize, boolean bigendian) {
+        if (encoding != EqualizerInputStream.PCM_SIGNED && encoding != EqualizerInputStream.PCM_UNSIGNED
+                && encoding != EqualizerInputStream.PCM_FLOAT)
+            throw new IllegalArgumentException("Unsupported encoding");
+        this.iir = iir;
+        this.converter = new SampleConverter(encoding != EqualizerInputStream.PCM_UNSIGNED,
+                encoding == EqualizerInputStream.PCM_FLOAT, samplesize, bigendian);
+        this.framesize = samplesize / 8 * iir.channels;
+        int block = Math.max(BLOCK_SIZE / iir.channels, 1) * iir.channels;
+        if (converter.floating)
+            this.floatbuf = new float[block];
+        else
+            this.workbuf = new int[block];
+    }
+
+    /**
+     * Returns Controls of equalizer
+     *
+     * @return Controls of equalizer
+     */
+    public IIRControls getControls() {
+        return iir.getControls();
+    }
+
+    /**
+     * Equalizes the whole array in place
+     *
+     * @param b is the pcm data
+     * @return the number of bytes processed
+     * @see #process(byte[], int, int)
+     */
+    public int process(byte[] b) {
+        return process(b, 0, b.length);
+    }
+
+    /**
+     * Equalizes a region of the array in place. Only whole frames are
+     * processed, an incomplete frame at the end is left as is.
+     *
+     * @param b   is the pcm data
+     * @param off is the index of the first byte
+     * @param len is the number of bytes
+     * @return the number of bytes processed
+     */
+    public int process(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off + len > b.length)
+            throw new IndexOutOfBoundsException();
+        int end = off + len / framesize * framesize;
+        if (converter.floating) {
+            int block = floatbuf.length / iir.channels * framesize;
+            for (int pos = off; pos < end; pos += block) {
+                int samples = converter.toFloat(b, pos, Math.min(block, end - pos), floatbuf);
+                iir.iir(floatbuf, samples);
+                converter.fromFloat(floatbuf, samples, b, pos);
+            }
+            return end - off;
+        }
+        if (iir.iir(b, off, b, off, len / framesize, converter))
+            return end - off;
+        int block = workbuf.length / iir.channels * framesize;
+        for (int pos = off; pos < end; pos += block) {
+            int samples = converter.toInt(b, pos, Math.min(block, end - pos), workbuf);
+            iir.iir(workbuf, samples);
+            converter.toByte(workbuf, samples, b, pos);
+        }
+        return end - off;
+    }
+
+    /**
+     * Equalizes a region of a buffer in place: the samples are read and
+     * written with absolute gets and puts (see SampleConverter), so a direct
+     * or mapped buffer is filtered without copying its bytes into an array.
+     * The buffer has to be in the byte order of this processor; position
+     * and limit are not used. Only whole frames are processed.
+     *
+     * @param b   is the buffer with pcm data
+     * @param off is the index of the first byte
+     * @param len is the number of bytes
+     * @return the number of bytes processed
+     */
+    int process(ByteBuffer b, int off, int len) {
+        int end = off + len / framesize * framesize;
+        if (converter.floating) {
+            int block = floatbuf.length / iir.channels * framesize;
+            for (int pos = off; pos < end; pos += block) {
+                int samples = converter.toFloat(b, pos, Math.min(block, end - pos), floatbuf);
+                iir.iir(floatbuf, samples);
+                converter.fromFloat(floatbuf, samples, b, pos);
+            }
+            return end - off;
+        }
+        int block = workbuf.length / iir.channels * framesize;
+        for (int pos = off; pos < end; pos += block) {
+            int samples = converter.toInt(b, pos, Math.min(block, end - pos), workbuf);
+            iir.iir(workbuf, samples);
+            converter.toByte(workbuf, samples, b, pos);
+        }
+        return end - off;
+    }
+}
@@ -18,58 +18,114 @@
  */
 package davaguine.jeq.core;
 
+import java.util.Arrays;
+
 /**
  * Generic wrapper around IIR algorithm.
+ * <p/>
+ * Bands with zero gain in all channels are skipped. While a band is
+ * skipped, the filter input is recorded into a ring, so the band can be
+ * brought up to date when it becomes active. The ring is allocated when a
+ * band is skipped for the first time and holds the longest warm-up length
+ * of the bands in double: 8 bytes per sample of about 0.35 s with 10 bands
+ * and 1.8 s with 31 bands, which is 0.23 MB for 10 bands at 44.1 kHz
+ * stereo and up to 25 MB for 31 cascaded bands at 192 kHz and 8 channels.
+ * Each block copies at most the ring length of its last frames into it,
+ * bypassed blocks too.
+ * <p/>
+ * A band which becomes active again is not brought up to date at once: each
+ * block replays the frames of the previous block plus WARM_FRAMES of the
+ * recording into its history, and the band is filtered from the block on
+ * in which it has caught up. So the cost of switching bands on is spread
+ * over several blocks instead of replaying up to the whole ring in one.
  * Author: Dmitry Vaguine
  * Date: 02.05.2004
  * Time: 12:00:29
  */
-public class IIR extends IIRBase {
-    /**
-     * Max number of channels supported
-     */
-    public final static int EQ_MAX_CHANNELS = 2;
-    /**
-     * Max bands supported by the code
-     */
-    public final static int EQ_MAX_BANDS = 31;
+public class IIR extends AbstractIIR {
+    /* Filter history as structure of arrays, one array per tap.
+     * Every array is indexed by [channel * bands + band] */
+    private double[] x1; /* x[n-1] */
+    private double[] x2; /* x[n-2] */
+    private double[] y1; /* y[n-1] */
+    private double[] y2; /* y[n-2] */
+
+    /* History of the second filter stage, same layout.
+     * Allocated when the cascaded mode is switched on */
+    private double[] cx1;
+    private double[] cx2;
+    private double[] cy1;
+    private double[] cy2;
+
+    /* Band gains of current block, indexed by [channel * bands + band] */
+    private double[] gains;
+
+    /* Snapshot of the controls the gains are taken from (or are ramped to) */
+    private IIRControls.Snapshot target;
+    /* Ramp settings, see setRamp() */
+    private int ramplength;
+    private int rampshape = RAMP_LINEAR;
+    private double rampcoef;
+    /* Number of frames left to the end of current ramp, 0 if there is no ramp */
+    private int rampleft;
+    /* Band gains of the target and their linear steps per frame */
+    private double[] rampgains;
+    private double[] rampsteps;
+    /* Current preamp during a ramp, its linear steps and the float copy used as preamp */
+    private double[] ramppreamp;
+    private double[] ramppreampsteps;
+    private float[] ramppreampvalues;
+
+    /* Bands with a non-zero gain in some channel are active, the others are skipped.
+     * The history, the gains and the coefficients are kept in band slots: the
+     * active bands take the first nactive slots in ascending order, so the
+     * kernels filter slots 0 .. nactive - 1 */
+    private int nactive;
+    /* Band in each slot and slot of each band, with spare arrays for the next order */
+    private int[] order;
+    private int[] slots;
+    private int[] neworder;
+    private int[] newslots;
+    /* Coefficients in the order of the slots */
+    private double[] calpha;
+    private double[] cbeta;
+    private double[] cgamma;
+    /* Temporary array for moving the bands between the slots */
+    private double[] scratch;
+    /* No band is active and the preamp is unity, so the samples are passed through */
+    private boolean bypass;
+    /* Input of the filters (after the preamp) of the last frames, one ring per channel.
+     * It is recorded while some band is skipped, to warm the band up when it becomes
+     * active. Allocated when a band is skipped for the first time */
+    private double[][] ring;
+    /* Some band is skipped, so the input is recorded */
+    private boolean recording;
+    /* Number of frames recorded into the ring so far */
+    private long recorded;
+    /* Frame (counted in recorded) from which each skipped band is skipped, -1 for active bands */
+    private long[] since;
+    /* Number of frames needed to warm up each band from empty history */
+    private int[] warmup;
+    /* Bands which are active in the controls but still catch up, see warm() */
+    private boolean[] pending;
+    private boolean warming;
+    /* Value of recorded at the last catch-up step */
+    private long warmed;
+    /* Number of frames replayed by warm() so far, summed over the bands */
+    private long replayed;
+
     /**
-     * Supported sample rates
+     * Number of recorded frames a band which becomes active replays per
+     * block on top of the frames of the previous block, until it has caught up
      */
-    public final static float EQ_11025_RATE = 11025;
-    public final static float EQ_22050_RATE = 22050;
-    public final static float EQ_44100_RATE = 44100;
-    public final static float EQ_48000_RATE = 48000;
+    public final static int WARM_FRAMES = 4096;
+
     /**
-     * Supported number of bands
+     * From this number of channels the block is filtered channel by channel
+     * instead of frame by frame, so only the history of one channel has to
+     * stay in the cache at a time
      */
-    public final static int EQ_10_BANDS = 10;
-    public final static int EQ_15_BANDS = 15;
-    public final static int EQ_25_BANDS = 25;
-    public final static int EQ_31_BANDS = 31;
-
-    /* Indexes for the history arrays
-     * These have to be kept between calls to this function
-     * hence they are static */
-    private int i;
-    private int j;
-    private int k;
-
-    /* History for two filters */
-    private XYData[][] dataHistory = new XYData[EQ_MAX_BANDS][EQ_MAX_CHANNELS];
-    private XYData[][] dataHistory2 = new XYData[EQ_MAX_BANDS][EQ_MAX_CHANNELS];
-
-    /* Coefficients */
-    private IIRCoefficients[] iircf;
-
-    /* Equalizer config */
-    private IIRControls eqcfg;
-    /* rate */
-    private float rate;
-    /* channels */
-    private int channels;
-    /* bands */
-    private int bands;
+    public final static int CHANNEL_ORDER_THRESHOLD = 8;
 
     /**
      * Constructs equalizer with given config
@@ -79,123 +135,255 @@ public class IIR extends IIRBase {
      * @param channels is the number of channels
      */
     public IIR(int bands, float rate, int channels) {
-        this.rate = rate;
-        this.channels = channels;
-        this.bands = bands;
-        this.eqcfg = new IIRControls(bands, channels);
-
-        if (!isParamsSupported(bands, rate, channels))
-            throw new IllegalArgumentException("Unsupported parameters");
-
+        super(bands, rate, channels);
         initIIR();
     }
 
     /**
-     * Returns Controls of equalizer
+     * Constructs equalizer with custom band layout
      *
-     * @return Controls of equalizer
+     * @param layout   is the band layout
+     * @param rate     is the sample rate of equalizer
+     * @param channels is the number of channels
      */
-    public IIRControls getControls() {
-        return eqcfg;
+    public IIR(IIRBandLayout layout, float rate, int channels) {
+        super(layout, rate, channels);
+        initIIR();
+    }
+
+    /* Init the filters */
+    private void initIIR() {
+        x1 = new double[channels * bands];
+        x2 = new double[channels * bands];
+        y1 = new double[channels * bands];
+        y2 = new double[channels * bands];
+        gains = new double[channels * bands];
+        /* All bands are skipped until the controls are loaded */
+        order = new int[bands];
+        slots = new int[bands];
+        neworder = new int[bands];
+        newslots = new int[bands];
+        for (int band = 0; band < bands; band++)
+            order[band] = slots[band] = band;
+        calpha = alpha.clone();
+        cbeta = beta.clone();
+        cgamma = gamma.clone();
+        scratch = new double[channels * bands];
+        since = new long[bands];
+        pending = new boolean[bands];
+        initWarmup(false);
+    }
+
+    /* Takes the warm-up lengths and makes the ring, if there is one, long enough for them */
+    private void initWarmup(boolean cascade) {
+        warmup = coefficients.getWarmupLengths(cascade);
+        int capacity = getRingCapacity();
+        if (ring == null || ring[0].length >= capacity)
+            return;
+        double old[][] = ring, ring[][] = new double[channels][capacity];
+        /* Keep the recorded frames at their new positions */
+        int oldcapacity = old[0].length;
+        for (long f = Math.max(0, recorded - oldcapacity); f < recorded; f++)
+            for (int channel = 0; channel < channels; channel++)
+                ring[channel][(int) (f % capacity)] = old[channel][(int) (f % oldcapacity)];
+        this.ring = ring;
+    }
+
+    /* The ring holds the longest warm-up of the bands */
+    private int getRingCapacity() {
+        int capacity = 1;
+        for (int band = 0; band < bands; band++)
+            capacity = Math.max(capacity, warmup[band]);
+        return capacity;
     }
 
     /**
-     * This is special method for checking of supported parameters of equalizer
-     *
-     * @param bands    is the number of bands
-     * @param rate     is the sample rate of data
-     * @param channels is the number of channels
-     * @return true if parameters are supported
+     * Clear filter history.
      */
-    public static boolean isParamsSupported(int bands, float rate, int channels) {
-        if (rate != EQ_11025_RATE && rate != EQ_22050_RATE && rate != EQ_44100_RATE && rate != EQ_48000_RATE)
-            return false;
+    public void cleanHistory() {
+        /* Zero the history arrays */
+        Arrays.fill(x1, 0);
+        Arrays.fill(x2, 0);
+        Arrays.fill(y1, 0);
+        Arrays.fill(y2, 0);
+        if (cx1 != null) {
+            Arrays.fill(cx1, 0);
+            Arrays.fill(cx2, 0);
+            Arrays.fill(cy1, 0);
+            Arrays.fill(cy2, 0);
+        }
+        /* Skipped bands continue from the empty history */
+        for (int band = 0; band < bands; band++)
+            if (since[band] >= 0)
+                since[band] = recorded;
+    }
 
-        switch (bands) {
-            case EQ_10_BANDS:
-            case EQ_15_BANDS:
-            case EQ_25_BANDS:
-            case EQ_31_BANDS:
-                break;
-            default:
-                return false;
+    void flushHistory() {
+        flush(x1);
+        flush(x2);
+        flush(y1);
+        flush(y2);
+        flush(cx1);
+        flush(cx2);
+        flush(cy1);
+        flush(cy2);
+    }
+
+    /* Skipped bands don't contribute, their history is left out */
+    double getHistoryPeak() {
+        double peak = 0;
+        for (int g = 0; g < channels * bands; g += bands) {
+            int end = g + nactive;
+            peak = peak(x1, g, end, peak);
+            peak = peak(x2, g, end, peak);
+            peak = peak(y1, g, end, peak);
+            peak = peak(y2, g, end, peak);
+            if (cascade) {
+                peak = peak(cx1, g, end, peak);
+                peak = peak(cx2, g, end, peak);
+                peak = peak(cy1, g, end, peak);
+                peak = peak(cy2, g, end, peak);
+            }
         }
+        return peak;
+    }
 
-        switch (channels) {
-            case 1:
-            case 2:
-                break;
-            default:
-                return false;
+    /**
+     * Tests if the filter history has decayed so far that the output for
+     * silent input stays below given level from now on. Always false
+     * during a ramp, which has to run to its end through filtered frames,
+     * and while a band catches up (see isWarming).
+     *
+     * @param level is the level in units of the samples
+     * @return true if the output for silence stays below the level
+     */
+    public boolean isDecayed(double level) {
+        return rampleft == 0 && !warming && super.isDecayed(level);
+    }
+
+    /* A ramp moves on through the skipped frames, skipped bands get the silence recorded */
+    void skipSilence(int frames) {
+        loadGains();
+        for (; rampleft > 0 && frames > 0; frames--) {
+            rampStep();
+            recordSilence(1);
         }
+        recordSilence(frames);
+    }
 
-        return (rate != EQ_11025_RATE && rate != EQ_22050_RATE) || bands == EQ_10_BANDS;
+    /**
+     * Tests if this engine can ramp the gains, always true for IIR
+     *
+     * @return true
+     */
+    public boolean isRampSupported() {
+        return true;
     }
 
-    /* Init the filters */
-    private void initIIR() {
-        setFilters();
-        for (int ii = 0; ii < EQ_MAX_BANDS; ii++)
-            for (int jj = 0; jj < EQ_MAX_CHANNELS; jj++) {
-                dataHistory[ii][jj] = new XYData();
-                dataHistory2[ii][jj] = new XYData();
-            }
-        i = 0;
-        j = 2;
-        k = 1;
-    }
-
-    private void setFilters() {
-        if (rate == EQ_11025_RATE)
-            iircf = iir_cf10_11k_11025;
-        else if (rate == EQ_22050_RATE)
-            iircf = iir_cf10_22k_22050;
-        else if (rate == EQ_44100_RATE) {
-            switch (bands) {
-                case 31:
-                    iircf = iir_cf31_44100;
-                    break;
-                case 25:
-                    iircf = iir_cf25_44100;
-                    break;
-                case 15:
-                    iircf = iir_cf15_44100;
-                    break;
-                default:
-                    iircf = iir_cf10_44100;
-                    break;
-            }
-        } else if (rate == EQ_48000_RATE) {
-            switch (bands) {
-                case 31:
-                    iircf = iir_cf31_48000;
-                    break;
-                case 25:
-                    iircf = iir_cf25_48000;
-                    break;
-                case 15:
-                    iircf = iir_cf15_48000;
-                    break;
-                default:
-                    iircf = iir_cf10_48000;
-                    break;
-            }
+    /**
+     * Sets ramping of the band gains and the preamp. When the controls
+     * change, the gains move from the current values to the new ones
+     * sample by sample over given number of frames, instead of jumping at
+     * the next block, which avoids zipper noise when a control is dragged.
+     * A change during a ramp starts a new ramp from the values reached.
+     * With no ramp (length 0, the default) the gains jump as before.
+     *
+     * @param length is the length of the ramp in frames, 0 for no ramp
+     * @param shape  is RAMP_LINEAR or RAMP_EXPONENTIAL
+     */
+    public void setRamp(int length, int shape) {
+        if (length < 0 || (shape != RAMP_LINEAR && shape != RAMP_EXPONENTIAL))
+            throw new IllegalArgumentException("Unsupported parameters");
+        if (length > 0 && rampgains == null) {
+            rampgains = new double[channels * bands];
+            rampsteps = new double[channels * bands];
+            ramppreamp = new double[channels];
+            ramppreampsteps = new double[channels];
+            ramppreampvalues = new float[channels];
         }
+        if (length == 0 && rampleft > 0)
+            endRamp();
+        ramplength = length;
+        rampshape = shape;
+        rampcoef = length > 0 ? 1 - Math.pow(1e-3, 1.0 / length) : 0;
     }
 
     /**
-     * Clear filter history.
+     * Returns the length of the ramp
+     *
+     * @return the length of the ramp in frames, 0 if there is no ramp
      */
-    public void cleanHistory() {
-        /* Zero the history arrays */
-        for (int ii = 0; ii < EQ_MAX_BANDS; ii++)
-            for (int jj = 0; jj < EQ_MAX_CHANNELS; jj++) {
-                dataHistory[ii][jj].zero();
-                dataHistory2[ii][jj].zero();
-            }
-        i = 0;
-        j = 2;
-        k = 1;
+    public int getRampLength() {
+        return ramplength;
+    }
+
+    /**
+     * Returns the shape of the ramp
+     *
+     * @return RAMP_LINEAR or RAMP_EXPONENTIAL
+     */
+    public int getRampShape() {
+        return rampshape;
+    }
+
+    /**
+     * Tests if the gains are moving to new values
+     *
+     * @return true if a ramp is in progress
+     */
+    public boolean isRamping() {
+        return rampleft > 0;
+    }
+
+    /**
+     * Returns the number of bands which are filtered. Bands with zero gain
+     * in all channels don't change the output and are skipped.
+     *
+     * @return the number of active bands
+     */
+    public int getActiveBands() {
+        return nactive;
+    }
+
+    /**
+     * Tests if the samples are passed through unchanged, because no band is
+     * active and the preamp is unity in all channels
+     *
+     * @return true if the equalizer is bypassed
+     */
+    public boolean isBypassed() {
+        return bypass;
+    }
+
+    /**
+     * Tests if a band which has been switched on is still being brought up
+     * to date from the recorded input. It is filtered (and counted by
+     * getActiveBands) from the block on in which it has caught up.
+     *
+     * @return true if some band catches up
+     */
+    public boolean isWarming() {
+        return warming;
+    }
+
+    /* Number of frames replayed into the history of bands so far, summed over the bands */
+    long getReplayedFrames() {
+        return replayed;
+    }
+
+    void initCascade() {
+        initWarmup(true);
+        if (cx1 == null) {
+            cx1 = new double[channels * bands];
+            cx2 = new double[channels * bands];
+            cy1 = new double[channels * bands];
+            cy2 = new double[channels * bands];
+        } else {
+            Arrays.fill(cx1, 0);
+            Arrays.fill(cx2, 0);
+            Arrays.fill(cy1, 0);
+            Arrays.fill(cy2, 0);
+        }
     }
 
     /**
@@ -205,10 +393,29 @@ public class IIR extends IIRBase {
      * @param length - length of data in buffer
      */
     public void iir(int[] data, int length) {
-        int index, band, channel;
-        float eqpreamp[] = eqcfg.getPreamp();
-        float eqbands[][] = eqcfg.getBands();
-        double pcm, out;
+        /* Take one snapshot of the controls per block */
+        loadGains();
+        flushDenormals(length / channels);
+        int from = rampleft > 0 ? iirRamp(data, length) : 0;
+        record(data, from, length);
+        if (bypass)
+            return;
+        if (channels >= CHANNEL_ORDER_THRESHOLD) {
+            iirByChannel(data, from, length);
+            return;
+        }
+        if (cascade) {
+            iirCascade(data, from, length);
+            return;
+        }
+        int index, band, channel, g, s;
+        double hx1[] = x1, hx2[] = x2, hy1[] = y1, hy2[] = y2;
+        double cfa[] = calpha, cfb[] = cbeta, cfg[] = cgamma;
+        int nact = nactive;
+        double gain[] = gains;
+        int bands = this.bands, channels = this.channels;
+        double pcm, out, x, y, yp;
+        float eqpreamp[] = preamp;
 
         /**
          * IIR filter equation is
@@ -216,40 +423,39 @@ public class IIR extends IIRBase {
          *
          * NOTE: The 2 factor was introduced in the coefficients to save
          * 			a multiplication
-         *
-         * This algorithm cascades two filters to get nice filtering
-         * at the expense of extra CPU cycles
          */
-        IIRCoefficients tempcf;
-        XYData tempd;
-        for (index = 0; index < length; index += channels) {
+        for (index = from; index < length; index += channels) {
             /* For each channel */
-            for (channel = 0; channel < channels; channel++) {
+            for (channel = 0, g = 0; channel < channels; channel++, g += bands) {
                 /* Preamp gain */
-                pcm = data[index + channel] * eqpreamp[channel];
+                pcm = (double) data[index + channel] * eqpreamp[channel];
 
                 out = 0f;
                 /* For each band */
-                for (band = 0; band < bands; band++) {
-                    /* Store Xi(n) */
-                    tempd = dataHistory[band][channel];
-                    tempd.x[i] = pcm;
-                    /* Calculate and store Yi(n) */
-                    tempcf = iircf[band];
-                    tempd.y[i] =
+                for (band = 0; band < nact; band++) {
+                    s = g + band;
+                    x = hx1[s];
+                    yp = hy1[s];
+                    /* Calculate Yi(n) */
+                    y =
                             (
                                     /* 		= alpha * [x(n)-x(n-2)] */
-                                    tempcf.alpha * (pcm - tempd.x[k])
+                                    cfa[band] * (pcm - hx2[s])
                                             /* 		+ gamma * y(n-1) */
-                                            + tempcf.gamma * tempd.y[j]
+                                            + cfg[band] * yp
                                             /* 		- beta * y(n-2) */
-                                            - tempcf.beta * tempd.y[k]
+                                            - cfb[band] * hy2[s]
                             );
+                    /* Shift the history */
+                    hx2[s] = x;
+                    hx1[s] = pcm;
+                    hy2[s] = yp;
+                    hy1[s] = y;
                     /*
                      * The multiplication by 2.0 was 'moved' into the coefficients to save
                      * CPU cycles here */
                     /* Apply the gain  */
-                    out += (tempd.y[i] * eqbands[band][channel]); // * 2.0;
+                    out += (y * gain[s]); // * 2.0;
                 } /* For each band */
 
                 /* Volume stuff
@@ -266,20 +472,743 @@ public class IIR extends IIRBase {
                 /* Round and convert to integer */
                 data[index + channel] = (int) out;
             } /* For each channel */
+        }/* For each pair of samples */
+    }
+
+    /**
+     * Filtering method for planar (deinterleaved) data: one array per channel.
+     *
+     * @param data   - data to be filtered, data[channel][offset .. offset + length - 1]
+     * @param offset - index of the first sample in every channel
+     * @param length - number of samples in every channel
+     */
+    public void iir(int[][] data, int offset, int length) {
+        int channels = this.channels;
+        loadGains();
+        flushDenormals(length);
+        int done = rampleft > 0 ? iirRamp(data, offset, length) : 0;
+        record(data, offset + done, length - done);
+        if (bypass)
+            return;
+        for (int channel = 0; channel < channels; channel++)
+            iirChannel(data[channel], offset + done, length - done, 1, channel);
+    }
+
+    /**
+     * Decodes, filters and encodes whole frames of PCM bytes in one pass.
+     * There is one kernel per sample size; the byte order is handled by
+     * the positions of the bytes and the signedness by flipping the sign
+     * bit, so the kernels have no branches per sample.
+     */
+    boolean iir(byte[] in, int inoff, byte[] out, int outoff, int frames, SampleConverter format) {
+        if (cascade || channels >= CHANNEL_ORDER_THRESHOLD)
+            return false;
+        loadGains();
+        /* The kernels have fixed gains, a ramp goes through iir(int[], int) */
+        if (rampleft > 0)
+            return false;
+        flushDenormals(frames);
+        switch (format.samplesize) {
+            case 8:
+                iir8(in, inoff, out, outoff, frames, format.signed ? 0 : 0x80);
+                break;
+            case 16:
+                iir16(in, inoff, out, outoff, frames, format.bigendian, format.signed ? 0 : 0x8000);
+                break;
+            case 24:
+                iir24(in, inoff, out, outoff, frames, format.bigendian, format.signed ? 0 : 0x800000);
+                break;
+            default:
+                return false;
+        }
+        if (recording)
+            recorded += frames;
+        return true;
+    }
 
-            i++;
-            j++;
-            k++;
+    private void iir8(byte[] in, int ip, byte[] out, int op, int frames, int flip) {
+        float eqpreamp[] = preamp;
+        double pcm;
+        int bands = this.bands, channels = this.channels;
+        double ring[][] = recording ? this.ring : null;
+        int capacity = ring != null ? ring[0].length : 1, rp = (int) (recorded % capacity);
+        boolean bypass = this.bypass;
+        int channel, g, d;
+        for (int i = 0; i < frames; i++) {
+            for (channel = 0, g = 0; channel < channels; channel++, g += bands) {
+                d = (((in[ip++] & 0xff) ^ flip) << 24) >> 24;
+                pcm = (double) d * eqpreamp[channel];
+                if (ring != null)
+                    ring[channel][rp] = pcm;
+                if (!bypass)
+                    d = (int) filter(pcm, g);
+                d = d > 127 ? 127 : d < -128 ? -128 : d;
+                out[op++] = (byte) (d ^ flip);
+            }
+            if (ring != null && ++rp == capacity)
+                rp = 0;
+        }
+    }
 
-            /* Wrap around the indexes */
-            if (i == 3)
-                i = 0;
-            else if (j == 3)
-                j = 0;
-            else
-                k = 0;
+    private void iir16(byte[] in, int ip, byte[] out, int op, int frames, boolean bigendian, int flip) {
+        float eqpreamp[] = preamp;
+        double pcm;
+        int bands = this.bands, channels = this.channels;
+        double ring[][] = recording ? this.ring : null;
+        int capacity = ring != null ? ring[0].length : 1, rp = (int) (recorded % capacity);
+        boolean bypass = this.bypass;
+        int hi = bigendian ? 0 : 1, lo = 1 - hi;
+        int channel, g, d;
+        for (int i = 0; i < frames; i++) {
+            for (channel = 0, g = 0; channel < channels; channel++, g += bands, ip += 2, op += 2) {
+                d = ((in[ip + hi] & 0xff) << 8) | (in[ip + lo] & 0xff);
+                d = ((d ^ flip) << 16) >> 16;
+                pcm = (double) d * eqpreamp[channel];
+                if (ring != null)
+                    ring[channel][rp] = pcm;
+                if (!bypass)
+                    d = (int) filter(pcm, g);
+                d = (d > 32767 ? 32767 : d < -32768 ? -32768 : d) ^ flip;
+                out[op + hi] = (byte) (d >> 8);
+                out[op + lo] = (byte) d;
+            }
+            if (ring != null && ++rp == capacity)
+                rp = 0;
+        }
+    }
 
+    private void iir24(byte[] in, int ip, byte[] out, int op, int frames, boolean bigendian, int flip) {
+        float eqpreamp[] = preamp;
+        double pcm;
+        int bands = this.bands, channels = this.channels;
+        double ring[][] = recording ? this.ring : null;
+        int capacity = ring != null ? ring[0].length : 1, rp = (int) (recorded % capacity);
+        boolean bypass = this.bypass;
+        int hi = bigendian ? 0 : 2, lo = 2 - hi;
+        int channel, g, d;
+        for (int i = 0; i < frames; i++) {
+            for (channel = 0, g = 0; channel < channels; channel++, g += bands, ip += 3, op += 3) {
+                d = ((in[ip + hi] & 0xff) << 16) | ((in[ip + 1] & 0xff) << 8) | (in[ip + lo] & 0xff);
+                d = ((d ^ flip) << 8) >> 8;
+                pcm = (double) d * eqpreamp[channel];
+                if (ring != null)
+                    ring[channel][rp] = pcm;
+                if (!bypass)
+                    d = (int) filter(pcm, g);
+                d = (d > 8388607 ? 8388607 : d < -8388608 ? -8388608 : d) ^ flip;
+                out[op + hi] = (byte) (d >> 16);
+                out[op + 1] = (byte) (d >> 8);
+                out[op + lo] = (byte) d;
+            }
+            if (ring != null && ++rp == capacity)
+                rp = 0;
+        }
+    }
 
-        }/* For each pair of samples */
+    /* Filters one sample after the preamp, g is the index of the first band of its channel */
+    private double filter(double pcm, int g) {
+        double hx1[] = x1, hx2[] = x2, hy1[] = y1, hy2[] = y2;
+        double cfa[] = calpha, cfb[] = cbeta, cfg[] = cgamma;
+        int nact = nactive;
+        double gain[] = gains;
+        int band, s;
+        double out = 0f, x, y, yp;
+        for (band = 0; band < nact; band++) {
+            s = g + band;
+            x = hx1[s];
+            yp = hy1[s];
+            y = cfa[band] * (pcm - hx2[s]) + cfg[band] * yp - cfb[band] * hy2[s];
+            hx2[s] = x;
+            hx1[s] = pcm;
+            hy2[s] = yp;
+            hy1[s] = y;
+            out += (y * gain[s]);
+        }
+        out += (pcm * 0.25);
+        out *= 4;
+        return out;
+    }
+
+    /* Same as filter() with the second filter stage after every band */
+    private double filterCascade(double pcm, int g) {
+        double hx1[] = x1, hx2[] = x2, hy1[] = y1, hy2[] = y2;
+        double cx1[] = this.cx1, cx2[] = this.cx2, cy1[] = this.cy1, cy2[] = this.cy2;
+        double cfa[] = calpha, cfb[] = cbeta, cfg[] = cgamma;
+        int nact = nactive;
+        double gain[] = gains;
+        int band, s;
+        double out = 0f, x, y, yp, z, zp;
+        for (band = 0; band < nact; band++) {
+            s = g + band;
+            x = hx1[s];
+            yp = hy1[s];
+            y = cfa[band] * (pcm - hx2[s]) + cfg[band] * yp - cfb[band] * hy2[s];
+            hx2[s] = x;
+            hx1[s] = pcm;
+            hy2[s] = yp;
+            hy1[s] = y;
+            x = cx1[s];
+            zp = cy1[s];
+            z = cfa[band] * (y - cx2[s]) + cfg[band] * zp - cfb[band] * cy2[s];
+            cx2[s] = x;
+            cx1[s] = y;
+            cy2[s] = zp;
+            cy1[s] = z;
+            out += (z * gain[s]);
+        }
+        out += (pcm * 0.25);
+        out *= 4;
+        return out;
+    }
+
+    /**
+     * Filtering method for float samples, they are filtered in double
+     * precision without conversion to int and are not clamped.
+     *
+     * @param data   - data to be filtered
+     * @param length - length of data in buffer
+     */
+    public void iir(float[] data, int length) {
+        int bands = this.bands, channels = this.channels;
+        int index, channel, g;
+        double pcm;
+
+        loadGains();
+        flushDenormals(length / channels);
+        if (rampleft > 0) {
+            for (index = 0; rampleft > 0 && index + channels <= length; index += channels) {
+                rampStep();
+                boolean recording = this.recording;
+                int rp = recording ? (int) (recorded++ % ring[0].length) : 0;
+                for (channel = 0, g = 0; channel < channels; channel++, g += bands) {
+                    pcm = (double) data[index + channel] * preamp[channel];
+                    if (recording)
+                        ring[channel][rp] = pcm;
+                    data[index + channel] = (float) (cascade ? filterCascade(pcm, g) : filter(pcm, g));
+                }
+            }
+        } else
+            index = 0;
+        record(data, index, length);
+        if (bypass)
+            return;
+        float eqpreamp[] = preamp;
+
+        for (; index < length; index += channels)
+            for (channel = 0, g = 0; channel < channels; channel++, g += bands) {
+                pcm = (double) data[index + channel] * eqpreamp[channel];
+                data[index + channel] = (float) (cascade ? filterCascade(pcm, g) : filter(pcm, g));
+            }
+    }
+
+    /* Same as iir() with the channel loop outside of the sample loop */
+    private void iirByChannel(int[] data, int from, int length) {
+        int channels = this.channels;
+        for (int channel = 0; channel < channels; channel++)
+            iirChannel(data, from + channel, (length - from - channel + channels - 1) / channels, channels, channel);
+    }
+
+    /**
+     * Takes the band gains of all channels for the next block.
+     * Nothing is done if the controls haven't changed, otherwise the gains
+     * jump to the new values or a ramp to them is started.
+     */
+    void loadGains() {
+        IIRControls.Snapshot values = eqcfg.getSnapshot();
+        if (values == target) {
+            /* Bands which catch up take the next step */
+            if (warming)
+                updateActive();
+            return;
+        }
+        if (ramplength == 0 || target == null) {
+            /* No ramp, or nothing has been filtered with the old values yet */
+            loadSlots(values, gains);
+            preamp = values.preamp;
+            rampleft = 0;
+            target = values;
+        } else {
+            target = values;
+            startRamp(values);
+        }
+        updateActive();
+    }
+
+    /* Starts a ramp from current values to given snapshot */
+    private void startRamp(IIRControls.Snapshot values) {
+        double gain[] = gains, to[] = rampgains, step[] = rampsteps;
+        double pre[] = ramppreamp, prestep[] = ramppreampsteps;
+        float topre[] = values.preamp;
+        int length = ramplength;
+        if (rampleft == 0)
+            for (int channel = 0; channel < channels; channel++)
+                pre[channel] = preamp[channel];
+        loadSlots(values, to);
+        for (int s = 0; s < to.length; s++)
+            step[s] = (to[s] - gain[s]) / length;
+        for (int channel = 0; channel < channels; channel++) {
+            prestep[channel] = (topre[channel] - pre[channel]) / length;
+            ramppreampvalues[channel] = (float) pre[channel];
+        }
+        preamp = ramppreampvalues;
+        rampleft = length;
+    }
+
+    /* Moves the gains and the preamp one frame towards the target */
+    private void rampStep() {
+        if (--rampleft == 0) {
+            endRamp();
+            return;
+        }
+        double gain[] = gains, to[] = rampgains, step[] = rampsteps;
+        double pre[] = ramppreamp, prestep[] = ramppreampsteps;
+        float topre[] = target.preamp, prevalues[] = ramppreampvalues;
+        int s, channel, channels = this.channels;
+        if (rampshape == RAMP_LINEAR) {
+            for (s = 0; s < gain.length; s++)
+                gain[s] += step[s];
+            for (channel = 0; channel < channels; channel++)
+                pre[channel] += prestep[channel];
+        } else {
+            double k = rampcoef;
+            for (s = 0; s < gain.length; s++)
+                gain[s] += (to[s] - gain[s]) * k;
+            for (channel = 0; channel < channels; channel++)
+                pre[channel] += (topre[channel] - pre[channel]) * k;
+        }
+        for (channel = 0; channel < channels; channel++)
+            prevalues[channel] = (float) pre[channel];
+    }
+
+    /* Sets the gains and the preamp to the target */
+    private void endRamp() {
+        System.arraycopy(rampgains, 0, gains, 0, gains.length);
+        preamp = target.preamp;
+        rampleft = 0;
+        updateActive();
+    }
+
+    /* Filters the frames of a ramp, returns the index of the first frame after the ramp */
+    private int iirRamp(int[] data, int length) {
+        int index, channel, g, rp, bands = this.bands, channels = this.channels;
+        boolean recording;
+        double pcm;
+        for (index = 0; rampleft > 0 && index + channels <= length; index += channels) {
+            rampStep();
+            recording = this.recording;
+            rp = recording ? (int) (recorded++ % ring[0].length) : 0;
+            for (channel = 0, g = 0; channel < channels; channel++, g += bands) {
+                pcm = (double) data[index + channel] * preamp[channel];
+                if (recording)
+                    ring[channel][rp] = pcm;
+                data[index + channel] = (int) (cascade ? filterCascade(pcm, g) : filter(pcm, g));
+            }
+        }
+        return index;
+    }
+
+    /* Same as iirRamp() for planar data, returns the number of frames filtered */
+    private int iirRamp(int[][] data, int offset, int length) {
+        int i, channel, g, rp, bands = this.bands, channels = this.channels;
+        boolean recording;
+        double pcm;
+        for (i = 0; rampleft > 0 && i < length; i++) {
+            rampStep();
+            recording = this.recording;
+            rp = recording ? (int) (recorded++ % ring[0].length) : 0;
+            for (channel = 0, g = 0; channel < channels; channel++, g += bands) {
+                pcm = (double) data[channel][offset + i] * preamp[channel];
+                if (recording)
+                    ring[channel][rp] = pcm;
+                data[channel][offset + i] = (int) (cascade ? filterCascade(pcm, g) : filter(pcm, g));
+            }
+        }
+        return i;
+    }
+
+    /* Records the filter input of the frames data[from .. length - 1] into the ring */
+    private void record(int[] data, int from, int length) {
+        if (!recording)
+            return;
+        double ring[][] = this.ring;
+        float eqpreamp[] = preamp;
+        int capacity = ring[0].length, channels = this.channels;
+        /* Only the last capacity frames of the block stay in the ring */
+        int skip = Math.max(0, (length - from) / channels - capacity);
+        recorded += skip;
+        from += skip * channels;
+        int rp = (int) (recorded % capacity), index, channel;
+        for (index = from; index + channels <= length; index += channels) {
+            for (channel = 0; channel < channels; channel++)
+                ring[channel][rp] = (double) data[index + channel] * eqpreamp[channel];
+            if (++rp == capacity)
+                rp = 0;
+        }
+        recorded += (index - from) / channels;
+    }
+
+    /* Same as record() for float samples */
+    private void record(float[] data, int from, int length) {
+        if (!recording)
+            return;
+        double ring[][] = this.ring;
+        float eqpreamp[] = preamp;
+        int capacity = ring[0].length, channels = this.channels;
+        /* Only the last capacity frames of the block stay in the ring */
+        int skip = Math.max(0, (length - from) / channels - capacity);
+        recorded += skip;
+        from += skip * channels;
+        int rp = (int) (recorded % capacity), index, channel;
+        for (index = from; index + channels <= length; index += channels) {
+            for (channel = 0; channel < channels; channel++)
+                ring[channel][rp] = (double) data[index + channel] * eqpreamp[channel];
+            if (++rp == capacity)
+                rp = 0;
+        }
+        recorded += (index - from) / channels;
+    }
+
+    /* Same as record() for planar data: data[channel][offset .. offset + length - 1] */
+    void record(int[][] data, int offset, int length) {
+        if (!recording)
+            return;
+        double ring[][] = this.ring;
+        float eqpreamp[] = preamp;
+        int capacity = ring[0].length;
+        /* Only the last capacity frames of the block stay in the ring */
+        int skip = Math.max(0, length - capacity);
+        recorded += skip;
+        offset += skip;
+        length -= skip;
+        int rp = (int) (recorded % capacity);
+        for (int channel = 0; channel < channels; channel++) {
+            int p[] = data[channel], i, r = rp;
+            double in[] = ring[channel];
+            float pre = eqpreamp[channel];
+            for (i = 0; i < length; i++) {
+                in[r] = (double) p[offset + i] * pre;
+                if (++r == capacity)
+                    r = 0;
+            }
+        }
+        recorded += length;
+    }
+
+    /* Same as record() for given number of silent frames */
+    private void recordSilence(int frames) {
+        if (!recording)
+            return;
+        int capacity = ring[0].length, n = Math.min(frames, capacity);
+        int rp = (int) (recorded % capacity), end = Math.min(rp + n, capacity);
+        for (int channel = 0; channel < channels; channel++) {
+            Arrays.fill(ring[channel], rp, end, 0);
+            Arrays.fill(ring[channel], 0, n - (end - rp), 0);
+        }
+        recorded += frames;
+    }
+
+    /* Copies band gains of given snapshot into the slots of the bands */
+    private void loadSlots(IIRControls.Snapshot values, double[] gain) {
+        float eqbands[][] = values.bands;
+        for (int channel = 0; channel < channels; channel++)
+            for (int slot = 0; slot < bands; slot++)
+                gain[channel * bands + slot] = eqbands[order[slot]][channel];
+    }
+
+    /**
+     * Rebuilds the set of active bands: a band is active if its gain is not
+     * zero in some channel of the current gains or of the ramp target.
+     * Bands which become active are warmed up, bands which become inactive
+     * are skipped from now on and their input is recorded. A band which
+     * doesn't catch up in one step stays skipped and takes the next step
+     * with the next block. With a ramp, a band which joins late comes in
+     * with a new ramp from zero gain instead of the gain reached meanwhile.
+     */
+    private void updateActive() {
+        double gain[] = gains, to[] = rampleft > 0 ? rampgains : null;
+        int band, channel, s, n = 0, k;
+        boolean on, rampin = false;
+        int neworder[] = this.neworder;
+        /* The frames of the previous block and WARM_FRAMES more */
+        long budget = WARM_FRAMES + (warming ? recorded - warmed : 0);
+        warmed = recorded;
+        warming = false;
+        for (band = 0; band < bands; band++) {
+            on = false;
+            for (channel = 0, s = slots[band]; channel < channels && !on; channel++, s += bands)
+                on = gain[s] != 0 || (to != null && to[s] != 0);
+            if (on && since[band] >= 0 && !warm(band, budget)) {
+                pending[band] = warming = true;
+                continue;
+            }
+            if (on) {
+                if (pending[band] && ramplength > 0) {
+                    for (channel = 0, s = slots[band]; channel < channels; channel++, s += bands)
+                        gain[s] = 0;
+                    rampin = true;
+                }
+                since[band] = -1;
+                neworder[n++] = band;
+            } else if (since[band] < 0)
+                since[band] = recorded;
+            pending[band] = false;
+        }
+        for (band = 0, k = n; band < bands; band++)
+            if (since[band] >= 0)
+                neworder[k++] = band;
+        if (!Arrays.equals(neworder, order))
+            reorder();
+        nactive = n;
+        if (rampin)
+            startRamp(target);
+        recording = n < bands;
+        if (recording && ring == null)
+            ring = new double[channels][getRingCapacity()];
+        bypass = n == 0 && rampleft == 0;
+        for (channel = 0; channel < channels && bypass; channel++)
+            bypass = preamp[channel] == 1.0f;
+    }
+
+    /* Moves the bands into the slots of neworder */
+    private void reorder() {
+        int band, slot, swap[];
+        for (slot = 0; slot < bands; slot++)
+            newslots[neworder[slot]] = slot;
+        move(x1);
+        move(x2);
+        move(y1);
+        move(y2);
+        if (cx1 != null) {
+            move(cx1);
+            move(cx2);
+            move(cy1);
+            move(cy2);
+        }
+        move(gains);
+        if (rampgains != null) {
+            move(rampgains);
+            move(rampsteps);
+        }
+        for (slot = 0; slot < bands; slot++) {
+            band = neworder[slot];
+            calpha[slot] = alpha[band];
+            cbeta[slot] = beta[band];
+            cgamma[slot] = gamma[band];
+        }
+        swap = order;
+        order = neworder;
+        neworder = swap;
+        swap = slots;
+        slots = newslots;
+        newslots = swap;
+    }
+
+    /* Moves the values of all bands from their slots to the new ones */
+    private void move(double[] a) {
+        for (int channel = 0, g = 0; channel < channels; channel++, g += bands)
+            for (int band = 0; band < bands; band++)
+                scratch[g + newslots[band]] = a[g + slots[band]];
+        System.arraycopy(scratch, 0, a, 0, a.length);
+    }
+
+    /**
+     * Brings the history of a skipped band closer to date by filtering at
+     * most budget frames of the input recorded since the band was skipped
+     * (or since the last step). If that was longer ago than the warm-up
+     * length of the band, the filter starts from empty history over the
+     * last warm-up length frames: the history it had then has decayed below
+     * 2^-24 of the input peak by now.
+     *
+     * @return true if the band has caught up
+     */
+    private boolean warm(int band, long budget) {
+        long from = since[band], to = recorded, f;
+        /* Nothing has been recorded since */
+        if (from == to)
+            return true;
+        int capacity = ring[0].length, length = warmup[band];
+        boolean reset = to - from > length;
+        if (reset)
+            from = to - length;
+        to = Math.min(to, from + budget);
+        replayed += to - from;
+        double cfa = alpha[band], cfb = beta[band], cfg = gamma[band];
+        double pcm, x1, x2, y1, y2, y, z1 = 0, z2 = 0, w1 = 0, w2 = 0, z;
+        boolean cascade = this.cascade;
+        for (int channel = 0, s = slots[band]; channel < channels; channel++, s += bands) {
+            double in[] = ring[channel];
+            if (reset) {
+                x1 = x2 = y1 = y2 = 0;
+                z1 = z2 = w1 = w2 = 0;
+            } else {
+                x1 = this.x1[s];
+                x2 = this.x2[s];
+                y1 = this.y1[s];
+                y2 = this.y2[s];
+                if (cascade) {
+                    z1 = cx1[s];
+                    z2 = cx2[s];
+                    w1 = cy1[s];
+                    w2 = cy2[s];
+                }
+            }
+            int rp = (int) (from % capacity);
+            for (f = from; f < to; f++) {
+                pcm = in[rp];
+                if (++rp == capacity)
+                    rp = 0;
+                y = cfa * (pcm - x2) + cfg * y1 - cfb * y2;
+                x2 = x1;
+                x1 = pcm;
+                y2 = y1;
+                y1 = y;
+                if (cascade) {
+                    z = cfa * (y - z2) + cfg * w1 - cfb * w2;
+                    z2 = z1;
+                    z1 = y;
+                    w2 = w1;
+                    w1 = z;
+                }
+            }
+            this.x1[s] = x1;
+            this.x2[s] = x2;
+            this.y1[s] = y1;
+            this.y2[s] = y2;
+            if (cascade) {
+                cx1[s] = z1;
+                cx2[s] = z2;
+                cy1[s] = w1;
+                cy2[s] = w2;
+            }
+        }
+        since[band] = to;
+        return to == recorded;
+    }
+
+    /**
+     * Filters the samples of one channel: data[offset], data[offset + stride], ...
+     * Band gains have to be loaded by the caller. Different channels may be
+     * filtered by different threads at the same time.
+     *
+     * @param data    is the data to be filtered
+     * @param offset  is the index of the first sample
+     * @param count   is the number of samples
+     * @param stride  is the distance between samples
+     * @param channel is the index of channel
+     */
+    void iirChannel(int[] data, int offset, int count, int stride, int channel) {
+        if (cascade) {
+            iirChannelCascade(data, offset, count, stride, channel);
+            return;
+        }
+        int index, end, band, s;
+        double hx1[] = x1, hx2[] = x2, hy1[] = y1, hy2[] = y2;
+        double cfa[] = calpha, cfb[] = cbeta, cfg[] = cgamma;
+        int nact = nactive;
+        double gain[] = gains;
+        int bands = this.bands, g = channel * bands;
+        float preamp = this.preamp[channel];
+        double pcm, out, x, y, yp;
+
+        for (index = offset, end = offset + count * stride; index < end; index += stride) {
+            pcm = (double) data[index] * preamp;
+            out = 0f;
+            for (band = 0; band < nact; band++) {
+                s = g + band;
+                x = hx1[s];
+                yp = hy1[s];
+                y = cfa[band] * (pcm - hx2[s]) + cfg[band] * yp - cfb[band] * hy2[s];
+                hx2[s] = x;
+                hx1[s] = pcm;
+                hy2[s] = yp;
+                hy1[s] = y;
+                out += (y * gain[s]);
+            }
+            out += (pcm * 0.25);
+            out *= 4;
+            data[index] = (int) out;
+        }
+    }
+
+    /* Same as iirChannel() with the second filter stage after every band */
+    private void iirChannelCascade(int[] data, int offset, int count, int stride, int channel) {
+        int index, end, band, s;
+        double hx1[] = x1, hx2[] = x2, hy1[] = y1, hy2[] = y2;
+        double cx1[] = this.cx1, cx2[] = this.cx2, cy1[] = this.cy1, cy2[] = this.cy2;
+        double cfa[] = calpha, cfb[] = cbeta, cfg[] = cgamma;
+        int nact = nactive;
+        double gain[] = gains;
+        int bands = this.bands, g = channel * bands;
+        float preamp = this.preamp[channel];
+        double pcm, out, x, y, yp, z, zp;
+
+        for (index = offset, end = offset + count * stride; index < end; index += stride) {
+            pcm = (double) data[index] * preamp;
+            out = 0f;
+            for (band = 0; band < nact; band++) {
+                s = g + band;
+                x = hx1[s];
+                yp = hy1[s];
+                y = cfa[band] * (pcm - hx2[s]) + cfg[band] * yp - cfb[band] * hy2[s];
+                hx2[s] = x;
+                hx1[s] = pcm;
+                hy2[s] = yp;
+                hy1[s] = y;
+                x = cx1[s];
+                zp = cy1[s];
+                z = cfa[band] * (y - cx2[s]) + cfg[band] * zp - cfb[band] * cy2[s];
+                cx2[s] = x;
+                cx1[s] = y;
+                cy2[s] = zp;
+                cy1[s] = z;
+                out += (z * gain[s]);
+            }
+            out += (pcm * 0.25);
+            out *= 4;
+            data[index] = (int) out;
+        }
+    }
+
+    /* Same as iir() with the second filter stage after every band */
+    private void iirCascade(int[] data, int from, int length) {
+        int index, band, channel, g, s;
+        double hx1[] = x1, hx2[] = x2, hy1[] = y1, hy2[] = y2;
+        double cx1[] = this.cx1, cx2[] = this.cx2, cy1[] = this.cy1, cy2[] = this.cy2;
+        double cfa[] = calpha, cfb[] = cbeta, cfg[] = cgamma;
+        int nact = nactive;
+        double gain[] = gains;
+        int bands = this.bands, channels = this.channels;
+        double pcm, out, x, y, yp, z, zp;
+        float eqpreamp[] = preamp;
+
+        for (index = from; index < length; index += channels) {
+            for (channel = 0, g = 0; channel < channels; channel++, g += bands) {
+                pcm = (double) data[index + channel] * eqpreamp[channel];
+                out = 0f;
+                for (band = 0; band < nact; band++) {
+                    s = g + band;
+                    /* First stage, fed by the input */
+                    x = hx1[s];
+                    yp = hy1[s];
+                    y = cfa[band] * (pcm - hx2[s]) + cfg[band] * yp - cfb[band] * hy2[s];
+                    hx2[s] = x;
+                    hx1[s] = pcm;
+                    hy2[s] = yp;
+                    hy1[s] = y;
+                    /* Second stage, fed by the first one */
+                    x = cx1[s];
+                    zp = cy1[s];
+                    z = cfa[band] * (y - cx2[s]) + cfg[band] * zp - cfb[band] * cy2[s];
+                    cx2[s] = x;
+                    cx1[s] = y;
+                    cy2[s] = zp;
+                    cy1[s] = z;
+                    out += (z * gain[s]);
+                }
+                out += (pcm * 0.25);
+                out *= 4;
+                data[index + channel] = (int) out;
+            }
+        }
     }
 }
@@ -0,0 +1,198 @@
+/*
+ *  21.04.2004 Original verion. davagin@udm.ru.
+ *-----------------------------------------------------------------------
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *----------------------------------------------------------------------
+ */
+package davaguine.jeq.core;
+
+import java.util.Arrays;
+
+/**
+ * Immutable description of the bands of an equalizer: centre frequency
+ * and quality factor (Q) of every band. Together with the sample rate
+ * it fully defines the coefficients produced by {@link IIRDesigner}.
+ */
+public final class IIRBandLayout {
+    /* Centre frequencies used by the coefficient tables in IIRBase */
+    private final static double[] FREQ_10 = {
+            31, 62, 125, 250, 500, 1000, 2000, 4000, 8000, 16000
+    };
+    private final static double[] FREQ_10_11025 = {
+            31, 62, 125, 250, 500, 1000, 2000, 3000, 4000, 5500
+    };
+    private final static double[] FREQ_10_22050 = {
+            31, 62, 125, 250, 500, 1000, 2000, 4000, 8000, 11000
+    };
+    private final static double[] FREQ_15 = {
+            25, 40, 63, 100, 160, 250, 400, 630, 1000, 1600, 2500, 4000, 6300, 10000, 16000
+    };
+    private final static double[] FREQ_25 = {
+            20, 31.5, 40, 50, 80, 100, 125, 160, 250, 315, 400, 500, 800, 1000, 1250, 1600,
+            2500, 3150, 4000, 5000, 8000, 10000, 12500, 16000, 20000
+    };
+    private final static double[] FREQ_31 = {
+            20, 25, 31.5, 40, 50, 63, 80, 100, 125, 160, 200, 250, 315, 400, 500, 630, 800,
+            1000, 1250, 1600, 2000, 2500, 3150, 4000, 5000, 6300, 8000, 10000, 12500, 16000, 20000
+    };
+
+    /* Highest centre frequency of a compressed layout, relative to the sample rate */
+    private final static double MAX_RELATIVE_FREQUENCY = 0.45;
+
+    private final double[] frequencies;
+    private final double[] q;
+    private final int hash;
+
+    /**
+     * Constructs band layout
+     *
+     * @param frequencies is the centre frequency of every band in Hz
+     * @param q           is the quality factor of every band
+     */
+    public IIRBandLayout(double[] frequencies, double[] q) {
+        if (frequencies.length == 0 || frequencies.length != q.length)
+            throw new IllegalArgumentException("Invalid band layout");
+        this.frequencies = frequencies.clone();
+        this.q = q.clone();
+        this.hash = 31 * Arrays.hashCode(this.frequencies) + Arrays.hashCode(this.q);
+    }
+
+    /**
+     * Constructs band layout where all bands have the same bandwidth
+     *
+     * @param frequencies is the centre frequency of every band in Hz
+     * @param octaves     is the bandwidth of every band in octaves
+     * @return the layout
+     */
+    public static IIRBandLayout withBandwidth(double[] frequencies, double octaves) {
+        double[] q = new double[frequencies.length];
+        Arrays.fill(q, octavesToQ(octaves));
+        return new IIRBandLayout(frequencies, q);
+    }
+
+    /**
+     * Returns the layout used for the given number of bands at the given rate:
+     * the ISO frequencies of the built-in tables (1, 2/3 and 1/3 octave wide bands
+     * for 10, 15 and 25/31 bands). When the highest ISO frequency doesn't fit below
+     * half of the sample rate the bands are spread geometrically from the lowest
+     * ISO frequency up to 0.45 of the sample rate, and made as wide as their spacing.
+     *
+     * @param bands is the number of bands (10, 15, 25 or 31)
+     * @param rate  is the sample rate
+     * @return the layout or null if there is no standard layout for given number of bands
+     */
+    public static IIRBandLayout getDefaultLayout(int bands, float rate) {
+        double[] frequencies;
+        double octaves;
+        switch (bands) {
+            case AbstractIIR.EQ_10_BANDS:
+                if (rate == AbstractIIR.EQ_11025_RATE)
+                    return withBandwidth(FREQ_10_11025, 1.0);
+                if (rate == AbstractIIR.EQ_22050_RATE)
+                    return withBandwidth(FREQ_10_22050, 1.0);
+                frequencies = FREQ_10;
+                octaves = 1.0;
+                break;
+            case AbstractIIR.EQ_15_BANDS:
+                frequencies = FREQ_15;
+                octaves = 2.0 / 3.0;
+                break;
+            case AbstractIIR.EQ_25_BANDS:
+                frequencies = FREQ_25;
+                octaves = 1.0 / 3.0;
+                break;
+            case AbstractIIR.EQ_31_BANDS:
+                frequencies = FREQ_31;
+                octaves = 1.0 / 3.0;
+                break;
+            default:
+                return null;
+        }
+        if (frequencies[bands - 1] < rate / 2)
+            return withBandwidth(frequencies, octaves);
+
+        /* Compress the layout under the Nyquist frequency */
+        double low = frequencies[0];
+        double step = Math.pow(rate * MAX_RELATIVE_FREQUENCY / low, 1.0 / (bands - 1));
+        double[] compressed = new double[bands];
+        for (int i = 0; i < bands; i++)
+            compressed[i] = low * Math.pow(step, i);
+        return withBandwidth(compressed, Math.log(step) / Math.log(2));
+    }
+
+    /**
+     * Converts bandwidth in octaves into quality factor
+     *
+     * @param octaves is the bandwidth in octaves
+     * @return the quality factor
+     */
+    public static double octavesToQ(double octaves) {
+        double k = Math.pow(2, octaves / 2);
+        return 1 / (k - 1 / k);
+    }
+
+    /**
+     * Converts quality factor into bandwidth in octaves
+     *
+     * @param q is the quality factor
+     * @return the bandwidth in octaves
+     */
+    public static double qToOctaves(double q) {
+        double k = (1 + Math.sqrt(1 + 4 * q * q)) / (2 * q);
+        return 2 * Math.log(k) / Math.log(2);
+    }
+
+    /**
+     * Returns the number of bands
+     *
+     * @return the number of bands
+     */
+    public int getBands() {
+        return frequencies.length;
+    }
+
+    /**
+     * Returns the centre frequency of given band
+     *
+     * @param band is the index of band
+     * @return the frequency in Hz
+     */
+    public double getFrequency(int band) {
+        return frequencies[band];
+    }
+
+    /**
+     * Returns the quality factor of given band
+     *
+     * @param band is the index of band
+     * @return the quality factor
+     */
+    public double getQ(int band) {
+        return q[band];
+    }
+
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof IIRBandLayout))
+            return false;
+        IIRBandLayout l = (IIRBandLayout) o;
+        return hash == l.hash && Arrays.equals(frequencies, l.frequencies) && Arrays.equals(q, l.q);
+    }
+
+    public int hashCode() {
+        return hash;
+    }
+}
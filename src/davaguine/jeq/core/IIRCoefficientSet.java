@@ -0,0 +1,334 @@
+/*
+ *  21.04.2004 Original verion. davagin@udm.ru.
+ *-----------------------------------------------------------------------
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *----------------------------------------------------------------------
+ */
+package davaguine.jeq.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable coefficients of all bands of an equalizer, flattened into one
+ * array per coefficient. Sets are shared: all equalizers with the same
+ * configuration get the same instance from a concurrent cache, so the
+ * coefficients are computed (or copied from IIRBase) once per configuration
+ * and can't be changed by anybody afterwards.
+ * <p/>
+ * The standard 10/15/25/31 band layouts are kept for good. Of custom
+ * layouts only the MAX_CUSTOM_LAYOUTS most recently used ones are kept,
+ * so programs which build layouts at runtime don't fill the memory.
+ */
+public final class IIRCoefficientSet {
+    /**
+     * Number of custom layouts whose coefficient sets are kept for sharing
+     */
+    public final static int MAX_CUSTOM_LAYOUTS = 16;
+
+    /* Shared sets of the standard layouts, keyed by BandsKey */
+    private final static ConcurrentHashMap<Object, IIRCoefficientSet> cache = new ConcurrentHashMap<Object, IIRCoefficientSet>();
+    /* Shared sets of the recently used custom layouts, keyed by LayoutKey, in access order */
+    private final static Map<LayoutKey, IIRCoefficientSet> layouts = new LinkedHashMap<LayoutKey, IIRCoefficientSet>(MAX_CUSTOM_LAYOUTS, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<LayoutKey, IIRCoefficientSet> eldest) {
+            return size() > MAX_CUSTOM_LAYOUTS;
+        }
+    };
+
+    static {
+        /* Snapshot the built-in tables before anybody has a chance to modify them */
+        float[] rates = {AbstractIIR.EQ_11025_RATE, AbstractIIR.EQ_22050_RATE, AbstractIIR.EQ_44100_RATE, AbstractIIR.EQ_48000_RATE};
+        int[] bands = {AbstractIIR.EQ_10_BANDS, AbstractIIR.EQ_15_BANDS, AbstractIIR.EQ_25_BANDS, AbstractIIR.EQ_31_BANDS};
+        for (int i = 0; i < rates.length; i++)
+            for (int j = 0; j < bands.length; j++) {
+                IIRCoefficients[] iircf = getBuiltinCoefficients(bands[j], rates[i]);
+                if (iircf != null)
+                    cache.put(new BandsKey(bands[j], rates[i]), new IIRCoefficientSet(iircf, rates[i]));
+            }
+    }
+
+    /* Coefficients, one array per coefficient indexed by band. Never modified */
+    final double[] alpha;
+    final double[] beta;
+    final double[] gamma;
+    private final float rate;
+    /* Warm-up lengths of the bands, single stage and cascaded, computed on first use */
+    private int[] warmup;
+    private int[] warmupCascade;
+    /* Free decay peaks of the bands, single stage and cascaded, computed on first use */
+    private double[] decay;
+    private double[] decayCascade;
+
+    private IIRCoefficientSet(IIRCoefficients[] iircf, float rate) {
+        this.rate = rate;
+        alpha = new double[iircf.length];
+        beta = new double[iircf.length];
+        gamma = new double[iircf.length];
+        for (int band = 0; band < iircf.length; band++) {
+            alpha[band] = iircf[band].alpha;
+            beta[band] = iircf[band].beta;
+            gamma[band] = iircf[band].gamma;
+        }
+    }
+
+    /**
+     * Returns coefficients for given number of bands. The built-in IIRBase
+     * tables are used where they exist, otherwise the default band layout
+     * is designed for the sample rate.
+     *
+     * @param bands is the number of bands
+     * @param rate  is the sample rate
+     * @return the shared coefficient set
+     * @throws IllegalArgumentException if there are no such coefficients
+     * @see IIRBandLayout#getDefaultLayout(int, float)
+     */
+    public static IIRCoefficientSet getInstance(int bands, float rate) {
+        BandsKey key = new BandsKey(bands, rate);
+        IIRCoefficientSet set = cache.get(key);
+        if (set == null) {
+            IIRBandLayout layout = IIRBandLayout.getDefaultLayout(bands, rate);
+            if (layout == null)
+                throw new IllegalArgumentException("Unsupported number of bands");
+            set = share(key, new IIRCoefficientSet(IIRDesigner.getCoefficients(layout, rate), rate));
+        }
+        return set;
+    }
+
+    /**
+     * Returns coefficients of custom band layout
+     *
+     * @param layout is the band layout
+     * @param rate   is the sample rate
+     * @return the shared coefficient set
+     * @throws IllegalArgumentException if some band can't be designed at this rate
+     */
+    public static IIRCoefficientSet getInstance(IIRBandLayout layout, float rate) {
+        LayoutKey key = new LayoutKey(layout, rate);
+        IIRCoefficientSet set;
+        synchronized (layouts) {
+            set = layouts.get(key);
+        }
+        if (set == null) {
+            set = new IIRCoefficientSet(IIRDesigner.getCoefficients(layout, rate), rate);
+            synchronized (layouts) {
+                IIRCoefficientSet old = layouts.get(key);
+                if (old != null)
+                    set = old;
+                else
+                    layouts.put(key, set);
+            }
+        }
+        return set;
+    }
+
+    /**
+     * Tests if there are coefficients for given number of bands at given rate
+     *
+     * @param bands is the number of bands
+     * @param rate  is the sample rate
+     * @return true if getInstance(bands, rate) succeeds
+     */
+    public static boolean isSupported(int bands, float rate) {
+        if (cache.containsKey(new BandsKey(bands, rate)))
+            return true;
+        IIRBandLayout layout = IIRBandLayout.getDefaultLayout(bands, rate);
+        return layout != null && isSupported(layout, rate);
+    }
+
+    /**
+     * Tests if all bands of given layout can be designed at given rate
+     *
+     * @param layout is the band layout
+     * @param rate   is the sample rate
+     * @return true if getInstance(layout, rate) succeeds
+     */
+    public static boolean isSupported(IIRBandLayout layout, float rate) {
+        return layout != null && IIRDesigner.isSupported(layout, rate);
+    }
+
+    private static IIRCoefficientSet share(Object key, IIRCoefficientSet set) {
+        IIRCoefficientSet old = cache.putIfAbsent(key, set);
+        return old != null ? old : set;
+    }
+
+    /* Returns built-in coefficient table or null if there is no such table */
+    private static IIRCoefficients[] getBuiltinCoefficients(int bands, float rate) {
+        if (rate == AbstractIIR.EQ_11025_RATE)
+            return bands == AbstractIIR.EQ_10_BANDS ? IIRBase.iir_cf10_11k_11025 : null;
+        else if (rate == AbstractIIR.EQ_22050_RATE)
+            return bands == AbstractIIR.EQ_10_BANDS ? IIRBase.iir_cf10_22k_22050 : null;
+        else if (rate == AbstractIIR.EQ_44100_RATE) {
+            switch (bands) {
+                case 31:
+                    return IIRBase.iir_cf31_44100;
+                case 25:
+                    return IIRBase.iir_cf25_44100;
+                case 15:
+                    return IIRBase.iir_cf15_44100;
+                case 10:
+                    return IIRBase.iir_cf10_44100;
+            }
+        } else if (rate == AbstractIIR.EQ_48000_RATE) {
+            switch (bands) {
+                case 31:
+                    return IIRBase.iir_cf31_48000;
+                case 25:
+                    return IIRBase.iir_cf25_48000;
+                case 15:
+                    return IIRBase.iir_cf15_48000;
+                case 10:
+                    return IIRBase.iir_cf10_48000;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of bands
+     *
+     * @return the number of bands
+     */
+    public int getBands() {
+        return alpha.length;
+    }
+
+    /**
+     * Returns the sample rate the coefficients are designed for
+     *
+     * @return the sample rate
+     */
+    public float getRate() {
+        return rate;
+    }
+
+    /**
+     * Returns the number of frames a band has to filter, starting from
+     * empty history, until its history is within 2^-24 of the input peak
+     * of the history it would have had from the start
+     *
+     * @param cascade is true for the cascaded filters
+     * @return the lengths indexed by band, must not be modified
+     */
+    synchronized int[] getWarmupLengths(boolean cascade) {
+        int[] lengths = cascade ? warmupCascade : warmup;
+        if (lengths == null) {
+            lengths = new int[alpha.length];
+            for (int band = 0; band < lengths.length; band++)
+                lengths[band] = AbstractIIR.getPrerollLength(alpha[band], beta[band], gamma[band], cascade, 1.0 / (1 << 24)) + 2;
+            if (cascade)
+                warmupCascade = lengths;
+            else
+                warmup = lengths;
+        }
+        return lengths;
+    }
+
+    /**
+     * Returns the largest output every band filter can ring up to in free
+     * decay (silent input), per unit of the largest value of its history.
+     * Used to tell when the history of an equalizer is inaudible.
+     *
+     * @param cascade is true for the cascaded filters
+     * @return the peaks indexed by band, must not be modified
+     */
+    synchronized double[] getDecayPeaks(boolean cascade) {
+        double[] peaks = cascade ? decayCascade : decay;
+        if (peaks == null) {
+            peaks = new double[alpha.length];
+            for (int band = 0; band < peaks.length; band++)
+                peaks[band] = AbstractIIR.getDecayPeak(alpha[band], beta[band], gamma[band], cascade);
+            if (cascade)
+                decayCascade = peaks;
+            else
+                decay = peaks;
+        }
+        return peaks;
+    }
+
+    /**
+     * Returns alpha coefficient of given band
+     *
+     * @param band is the index of band
+     * @return the coefficient
+     */
+    public double getAlpha(int band) {
+        return alpha[band];
+    }
+
+    /**
+     * Returns beta coefficient of given band
+     *
+     * @param band is the index of band
+     * @return the coefficient
+     */
+    public double getBeta(int band) {
+        return beta[band];
+    }
+
+    /**
+     * Returns gamma coefficient of given band
+     *
+     * @param band is the index of band
+     * @return the coefficient
+     */
+    public double getGamma(int band) {
+        return gamma[band];
+    }
+
+    /* Cache key of sets for standard number of bands */
+    private static class BandsKey {
+        private final int bands;
+        private final float rate;
+
+        BandsKey(int bands, float rate) {
+            this.bands = bands;
+            this.rate = rate;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof BandsKey))
+                return false;
+            BandsKey k = (BandsKey) o;
+            return bands == k.bands && Float.floatToIntBits(rate) == Float.floatToIntBits(k.rate);
+        }
+
+        public int hashCode() {
+            return 31 * bands + Float.floatToIntBits(rate);
+        }
+    }
+
+    /* Cache key of sets for custom layouts */
+    private static class LayoutKey {
+        private final IIRBandLayout layout;
+        private final float rate;
+
+        LayoutKey(IIRBandLayout layout, float rate) {
+            this.layout = layout;
+            this.rate = rate;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof LayoutKey))
+                return false;
+            LayoutKey k = (LayoutKey) o;
+            return Float.floatToIntBits(rate) == Float.floatToIntBits(k.rate) && layout.equals(k.layout);
+        }
+
+        public int hashCode() {
+            return 31 * layout.hashCode() + Float.floatToIntBits(rate);
+        }
+    }
+}
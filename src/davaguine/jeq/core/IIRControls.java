@@ -18,23 +18,46 @@
  */
 package davaguine.jeq.core;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * Constols of equalizer
+ * <p>
+ * The values are kept in an immutable snapshot. Every setter publishes a new
+ * snapshot with one atomic store and the equalizer takes the current snapshot
+ * once per block, so a block is always filtered with one consistent set of
+ * values. Setters never wait for the audio thread and the audio thread never
+ * waits for setters; a change is picked up by the next block.
  * Author: Dmitry Vaguine
  * Date: 02.05.2004
  * Time: 12:00:29
  */
 public class IIRControls {
     /**
-     * Volume gain
-     * values should be between 0.0 and 1.0
-     */
-    private float preamp[];
-    /**
-     * Gain for each band
-     * values should be between -0.2 and 1.0
+     * Values of all controls. The arrays are never written after the snapshot
+     * is published, rows which didn't change are shared between snapshots.
      */
-    private float bands[][];
+    static final class Snapshot {
+        /**
+         * Volume gain
+         * values should be between 0.0 and 1.0
+         */
+        final float preamp[];
+        /**
+         * Gain for each band
+         * values should be between -0.2 and 1.0
+         */
+        final float bands[][];
+
+        Snapshot(float[] preamp, float[][] bands) {
+            this.preamp = preamp;
+            this.bands = bands;
+        }
+    }
+
+    /* Current values */
+    private final AtomicReference<Snapshot> values;
 
     /**
      * Creates new IIRControls object for given number of bands
@@ -43,13 +66,14 @@ public class IIRControls {
      * @param channels is the number of channels
      */
     public IIRControls(int bandsnum, int channels) {
-        preamp = new float[channels];
-        bands = new float[bandsnum][channels];
+        float preamp[] = new float[channels];
+        float bands[][] = new float[bandsnum][channels];
         for (int j = 0; j < channels; j++) {
             preamp[j] = 1.0f;
             for (int i = 0; i < bandsnum; i++)
                 bands[i][j] = 0f;
         }
+        values = new AtomicReference<Snapshot>(new Snapshot(preamp, bands));
     }
 
     /**
@@ -125,21 +149,12 @@ public class IIRControls {
     }
 
     /**
-     * Returns bands array
+     * Returns current values of all controls
      *
-     * @return bands array
+     * @return current snapshot, it must not be modified
      */
-    float[][] getBands() {
-        return bands;
-    }
-
-    /**
-     * Returns preamp array
-     *
-     * @return preamp array
-     */
-    float[] getPreamp() {
-        return preamp;
+    Snapshot getSnapshot() {
+        return values.get();
     }
 
     /**
@@ -150,7 +165,7 @@ public class IIRControls {
      * @return the value
      */
     public float getBandValue(int band, int channel) {
-        return bands[band][channel];
+        return values.get().bands[band][channel];
     }
 
     /**
@@ -161,7 +176,31 @@ public class IIRControls {
      * @param value   is the new value
      */
     public void setBandValue(int band, int channel, float value) {
-        bands[band][channel] = value;
+        Snapshot current, next;
+        do {
+            current = values.get();
+            float bands[][] = current.bands.clone();
+            bands[band] = bands[band].clone();
+            bands[band][channel] = value;
+            next = new Snapshot(current.preamp, bands);
+        } while (!values.compareAndSet(current, next));
+    }
+
+    /**
+     * Setter for value of control for given band in all channels at once
+     *
+     * @param band  is the index of band
+     * @param value is the new value
+     */
+    public void setBandValue(int band, float value) {
+        Snapshot current, next;
+        do {
+            current = values.get();
+            float bands[][] = current.bands.clone();
+            bands[band] = new float[bands[band].length];
+            Arrays.fill(bands[band], value);
+            next = new Snapshot(current.preamp, bands);
+        } while (!values.compareAndSet(current, next));
     }
 
     /**
@@ -174,9 +213,9 @@ public class IIRControls {
     void setBandDbValue(int band, int channel, float value) {
         /* Map the gain and preamp values */
         /* -12dB .. 12dB mapping */
-        bands[band][channel] = (float) (2.5220207857061455181125E-01 *
+        setBandValue(band, channel, (float) (2.5220207857061455181125E-01 *
                 Math.exp(8.0178361802353992349168E-02 * value)
-                - 2.5220207852836562523180E-01);
+                - 2.5220207852836562523180E-01));
     }
 
     /**
@@ -186,7 +225,7 @@ public class IIRControls {
      * @return the value
      */
     public float getPreampValue(int channel) {
-        return preamp[channel];
+        return values.get().preamp[channel];
     }
 
     /**
@@ -196,7 +235,28 @@ public class IIRControls {
      * @param value   is the new value
      */
     public void setPreampValue(int channel, float value) {
-        preamp[channel] = value;
+        Snapshot current, next;
+        do {
+            current = values.get();
+            float preamp[] = current.preamp.clone();
+            preamp[channel] = value;
+            next = new Snapshot(preamp, current.bands);
+        } while (!values.compareAndSet(current, next));
+    }
+
+    /**
+     * Setter for value of preamp control in all channels at once
+     *
+     * @param value is the new value
+     */
+    public void setPreampValue(float value) {
+        Snapshot current, next;
+        do {
+            current = values.get();
+            float preamp[] = new float[current.preamp.length];
+            Arrays.fill(preamp, value);
+            next = new Snapshot(preamp, current.bands);
+        } while (!values.compareAndSet(current, next));
     }
 
     /**
@@ -207,8 +267,22 @@ public class IIRControls {
      */
     public void setPreampDbValue(int channel, float value) {
         /* -12dB .. 12dB mapping */
-        preamp[channel] = (float) (9.9999946497217584440165E-01 *
+        setPreampValue(channel, (float) (9.9999946497217584440165E-01 *
                 Math.exp(6.9314738656671842642609E-02 * value)
-                + 3.7119444716771825623636E-07);
+                + 3.7119444716771825623636E-07));
+    }
+
+    /**
+     * Copies values of all controls from other controls in one step, e.g.
+     * to apply a whole preset at once
+     *
+     * @param controls are the controls with the same number of bands and channels
+     */
+    public void setValues(IIRControls controls) {
+        Snapshot snapshot = controls.values.get();
+        Snapshot current = values.get();
+        if (snapshot.bands.length != current.bands.length || snapshot.preamp.length != current.preamp.length)
+            throw new IllegalArgumentException("Unsupported parameters");
+        values.set(snapshot);
     }
 }
@@ -0,0 +1,105 @@
+/*
+ *  21.04.2004 Original verion. davagin@udm.ru.
+ *-----------------------------------------------------------------------
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *----------------------------------------------------------------------
+ */
+package davaguine.jeq.core;
+
+/**
+ * Designs the band-pass filters of the equalizer for any sample rate and
+ * band layout. This is the design the built-in IIRBase tables were computed
+ * with: every band is a second order band-pass with unity gain at the centre
+ * frequency f0 and -3 dB at f0 / k and f0 * k, where k follows from Q.
+ * Equalizers don't call it directly but share designed coefficients
+ * through {@link IIRCoefficientSet}, which caches them per (rate, layout).
+ */
+public class IIRDesigner {
+    /* Gain at the centre frequency and (squared) at the band edges */
+    private final static double GAIN_F0 = 1.0;
+    private final static double GAIN_F1 = GAIN_F0 / Math.sqrt(2);
+
+    private IIRDesigner() {
+    }
+
+    /**
+     * Designs coefficients of all bands of given layout.
+     * Every call returns a new array.
+     *
+     * @param layout is the band layout
+     * @param rate   is the sample rate
+     * @return the coefficients, one per band
+     * @throws IllegalArgumentException if some band can't be designed at this rate
+     */
+    public static IIRCoefficients[] getCoefficients(IIRBandLayout layout, float rate) {
+        IIRCoefficients[] cf = design(layout, rate);
+        if (cf == null)
+            throw new IllegalArgumentException("Band layout is not supported at this sample rate");
+        return cf;
+    }
+
+    /**
+     * Tests if all bands of given layout can be designed at given rate
+     *
+     * @param layout is the band layout
+     * @param rate   is the sample rate
+     * @return true if the layout is supported
+     */
+    public static boolean isSupported(IIRBandLayout layout, float rate) {
+        return layout != null && design(layout, rate) != null;
+    }
+
+    private static IIRCoefficients[] design(IIRBandLayout layout, float rate) {
+        IIRCoefficients[] cf = new IIRCoefficients[layout.getBands()];
+        for (int band = 0; band < cf.length; band++)
+            if ((cf[band] = design(layout.getFrequency(band), layout.getQ(band), rate)) == null)
+                return null;
+        return cf;
+    }
+
+    /**
+     * Designs one band-pass filter
+     *
+     * @param frequency is the centre frequency in Hz
+     * @param q         is the quality factor
+     * @param rate      is the sample rate
+     * @return the coefficients or null if there is no such filter at this rate
+     */
+    public static IIRCoefficients design(double frequency, double q, float rate) {
+        if (!(rate > 0) || !(frequency > 0) || !(frequency < rate / 2) || !(q > 0))
+            return null;
+        double k = (1 + Math.sqrt(1 + 4 * q * q)) / (2 * q);
+        double tf0 = 2 * Math.PI * frequency / rate;
+        double tf = 2 * Math.PI * frequency / k / rate;
+        double g0 = GAIN_F0 * GAIN_F0;
+        double g1 = GAIN_F1 * GAIN_F1;
+        double cf0 = Math.cos(tf0);
+        double cf = Math.cos(tf);
+        double sf = Math.sin(tf);
+
+        /* beta is the smaller root of a * beta^2 + b * beta + c = 0 */
+        double a = g1 * cf0 * cf0 - 2 * g1 * cf * cf0 + g1 - g0 * sf * sf;
+        double b = 2 * g1 * cf * cf + g1 * cf0 * cf0 - 2 * g1 * cf * cf0 - g1 + g0 * sf * sf;
+        double c = 0.25 * g1 * cf0 * cf0 - 0.5 * g1 * cf * cf0 + 0.25 * g1 - 0.25 * g0 * sf * sf;
+        double h = -b / (2 * a);
+        double d = -(c - b * b / (4 * a)) / a;
+        if (!(d >= 0))
+            return null;
+        double beta = Math.min(h - Math.sqrt(d), h + Math.sqrt(d));
+
+        /* The 2 factor is moved into the coefficients, see IIR.iir() */
+        return new IIRCoefficients(2 * beta, 0.5 - beta, 2 * (0.5 + beta) * cf0);
+    }
+}
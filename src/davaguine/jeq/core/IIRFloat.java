@@ -0,0 +1,312 @@
+/*
+ *  21.04.2004 Original verion. davagin@udm.ru.
+ *-----------------------------------------------------------------------
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *----------------------------------------------------------------------
+ */
+package davaguine.jeq.core;
+
+import java.util.Arrays;
+
+/**
+ * Single precision variant of {@link IIR}. The coefficient tables are the
+ * same, narrowed to float, and the whole filter runs in float arithmetic.
+ * It is meant for 16-bit data, see readme.txt for the signal to noise ratio
+ * against the double precision engine.
+ */
+public class IIRFloat extends AbstractIIR {
+    /* Filter history, one array per tap, indexed by [channel * bands + band] */
+    private float[] x1; /* x[n-1] */
+    private float[] x2; /* x[n-2] */
+    private float[] y1; /* y[n-1] */
+    private float[] y2; /* y[n-2] */
+
+    /* History of the second filter stage, allocated in cascaded mode */
+    private float[] cx1;
+    private float[] cx2;
+    private float[] cy1;
+    private float[] cy2;
+
+    /* Coefficients narrowed to float */
+    private float[] falpha;
+    private float[] fbeta;
+    private float[] fgamma;
+
+    /* Band gains of current block, indexed by [channel * bands + band] */
+    private float[] gains;
+
+    /**
+     * Constructs equalizer with given config
+     *
+     * @param bands    is the number of bands to be used
+     * @param rate     is the sample rate of equalizer
+     * @param channels is the number of channels
+     */
+    public IIRFloat(int bands, float rate, int channels) {
+        super(bands, rate, channels);
+        initIIR();
+    }
+
+    /**
+     * Constructs equalizer with custom band layout
+     *
+     * @param layout   is the band layout
+     * @param rate     is the sample rate of equalizer
+     * @param channels is the number of channels
+     */
+    public IIRFloat(IIRBandLayout layout, float rate, int channels) {
+        super(layout, rate, channels);
+        initIIR();
+    }
+
+    /* Init the filters */
+    private void initIIR() {
+        /* Float history reaches the denormal range sooner */
+        flushinterval = 1;
+        falpha = new float[bands];
+        fbeta = new float[bands];
+        fgamma = new float[bands];
+        for (int band = 0; band < bands; band++) {
+            falpha[band] = (float) alpha[band];
+            fbeta[band] = (float) beta[band];
+            fgamma[band] = (float) gamma[band];
+        }
+        x1 = new float[channels * bands];
+        x2 = new float[channels * bands];
+        y1 = new float[channels * bands];
+        y2 = new float[channels * bands];
+        gains = new float[channels * bands];
+    }
+
+    /**
+     * Clear filter history.
+     */
+    public void cleanHistory() {
+        Arrays.fill(x1, 0);
+        Arrays.fill(x2, 0);
+        Arrays.fill(y1, 0);
+        Arrays.fill(y2, 0);
+        if (cx1 != null) {
+            Arrays.fill(cx1, 0);
+            Arrays.fill(cx2, 0);
+            Arrays.fill(cy1, 0);
+            Arrays.fill(cy2, 0);
+        }
+    }
+
+    void initCascade() {
+        if (cx1 == null) {
+            cx1 = new float[channels * bands];
+            cx2 = new float[channels * bands];
+            cy1 = new float[channels * bands];
+            cy2 = new float[channels * bands];
+        } else {
+            Arrays.fill(cx1, 0);
+            Arrays.fill(cx2, 0);
+            Arrays.fill(cy1, 0);
+            Arrays.fill(cy2, 0);
+        }
+    }
+
+    void flushHistory() {
+        flush(x1);
+        flush(x2);
+        flush(y1);
+        flush(y2);
+        flush(cx1);
+        flush(cx2);
+        flush(cy1);
+        flush(cy2);
+    }
+
+    double getHistoryPeak() {
+        double peak = 0;
+        peak = peak(x1, 0, x1.length, peak);
+        peak = peak(x2, 0, x2.length, peak);
+        peak = peak(y1, 0, y1.length, peak);
+        peak = peak(y2, 0, y2.length, peak);
+        if (cascade) {
+            peak = peak(cx1, 0, cx1.length, peak);
+            peak = peak(cx2, 0, cx2.length, peak);
+            peak = peak(cy1, 0, cy1.length, peak);
+            peak = peak(cy2, 0, cy2.length, peak);
+        }
+        return peak;
+    }
+
+    /**
+     * Main filtering method.
+     *
+     * @param data   - data to be filtered
+     * @param length - length of data in buffer
+     */
+    public void iir(int[] data, int length) {
+        flushDenormals(length / channels);
+        if (cascade) {
+            iirCascade(data, length);
+            return;
+        }
+        int index, band, channel, g, s;
+        float hx1[] = x1, hx2[] = x2, hy1[] = y1, hy2[] = y2;
+        float cfa[] = falpha, cfb[] = fbeta, cfg[] = fgamma;
+        float gain[] = gains;
+        int bands = this.bands, channels = this.channels;
+        float pcm, out, x, y, yp;
+
+        loadGains(gain, bands);
+        float eqpreamp[] = preamp;
+
+        for (index = 0; index < length; index += channels) {
+            for (channel = 0, g = 0; channel < channels; channel++, g += bands) {
+                pcm = data[index + channel] * eqpreamp[channel];
+                out = 0f;
+                for (band = 0; band < bands; band++) {
+                    s = g + band;
+                    x = hx1[s];
+                    yp = hy1[s];
+                    /* y(n) = alpha * [x(n)-x(n-2)] + gamma * y(n-1) - beta * y(n-2) */
+                    y = cfa[band] * (pcm - hx2[s]) + cfg[band] * yp - cfb[band] * hy2[s];
+                    hx2[s] = x;
+                    hx1[s] = pcm;
+                    hy2[s] = yp;
+                    hy1[s] = y;
+                    out += y * gain[s];
+                }
+                out += pcm * 0.25f;
+                out *= 4;
+                data[index + channel] = (int) out;
+            }
+        }
+    }
+
+    /**
+     * Filtering method for float samples, they are filtered without
+     * conversion to int and are not clamped.
+     *
+     * @param data   - data to be filtered
+     * @param length - length of data in buffer
+     */
+    public void iir(float[] data, int length) {
+        int bands = this.bands, channels = this.channels;
+        int index, channel, g;
+        float pcm;
+
+        flushDenormals(length / channels);
+        loadGains(gains, bands);
+        float eqpreamp[] = preamp;
+
+        for (index = 0; index < length; index += channels)
+            for (channel = 0, g = 0; channel < channels; channel++, g += bands) {
+                pcm = data[index + channel] * eqpreamp[channel];
+                data[index + channel] = cascade ? filterCascade(pcm, g) : filter(pcm, g);
+            }
+    }
+
+    /* Filters one sample after the preamp, g is the index of the first band of its channel */
+    private float filter(float pcm, int g) {
+        float hx1[] = x1, hx2[] = x2, hy1[] = y1, hy2[] = y2;
+        float cfa[] = falpha, cfb[] = fbeta, cfg[] = fgamma;
+        float gain[] = gains;
+        int bands = this.bands, band, s;
+        float out = 0f, x, y, yp;
+        for (band = 0; band < bands; band++) {
+            s = g + band;
+            x = hx1[s];
+            yp = hy1[s];
+            y = cfa[band] * (pcm - hx2[s]) + cfg[band] * yp - cfb[band] * hy2[s];
+            hx2[s] = x;
+            hx1[s] = pcm;
+            hy2[s] = yp;
+            hy1[s] = y;
+            out += y * gain[s];
+        }
+        out += pcm * 0.25f;
+        out *= 4;
+        return out;
+    }
+
+    /* Same as filter() with the second filter stage after every band */
+    private float filterCascade(float pcm, int g) {
+        float hx1[] = x1, hx2[] = x2, hy1[] = y1, hy2[] = y2;
+        float cx1[] = this.cx1, cx2[] = this.cx2, cy1[] = this.cy1, cy2[] = this.cy2;
+        float cfa[] = falpha, cfb[] = fbeta, cfg[] = fgamma;
+        float gain[] = gains;
+        int bands = this.bands, band, s;
+        float out = 0f, x, y, yp, z, zp;
+        for (band = 0; band < bands; band++) {
+            s = g + band;
+            x = hx1[s];
+            yp = hy1[s];
+            y = cfa[band] * (pcm - hx2[s]) + cfg[band] * yp - cfb[band] * hy2[s];
+            hx2[s] = x;
+            hx1[s] = pcm;
+            hy2[s] = yp;
+            hy1[s] = y;
+            x = cx1[s];
+            zp = cy1[s];
+            z = cfa[band] * (y - cx2[s]) + cfg[band] * zp - cfb[band] * cy2[s];
+            cx2[s] = x;
+            cx1[s] = y;
+            cy2[s] = zp;
+            cy1[s] = z;
+            out += z * gain[s];
+        }
+        out += pcm * 0.25f;
+        out *= 4;
+        return out;
+    }
+
+    /* Same as iir() with the second filter stage after every band */
+    private void iirCascade(int[] data, int length) {
+        int index, band, channel, g, s;
+        float hx1[] = x1, hx2[] = x2, hy1[] = y1, hy2[] = y2;
+        float cx1[] = this.cx1, cx2[] = this.cx2, cy1[] = this.cy1, cy2[] = this.cy2;
+        float cfa[] = falpha, cfb[] = fbeta, cfg[] = fgamma;
+        float gain[] = gains;
+        int bands = this.bands, channels = this.channels;
+        float pcm, out, x, y, yp, z, zp;
+
+        loadGains(gain, bands);
+        float eqpreamp[] = preamp;
+
+        for (index = 0; index < length; index += channels) {
+            for (channel = 0, g = 0; channel < channels; channel++, g += bands) {
+                pcm = data[index + channel] * eqpreamp[channel];
+                out = 0f;
+                for (band = 0; band < bands; band++) {
+                    s = g + band;
+                    x = hx1[s];
+                    yp = hy1[s];
+                    y = cfa[band] * (pcm - hx2[s]) + cfg[band] * yp - cfb[band] * hy2[s];
+                    hx2[s] = x;
+                    hx1[s] = pcm;
+                    hy2[s] = yp;
+                    hy1[s] = y;
+                    x = cx1[s];
+                    zp = cy1[s];
+                    z = cfa[band] * (y - cx2[s]) + cfg[band] * zp - cfb[band] * cy2[s];
+                    cx2[s] = x;
+                    cx1[s] = y;
+                    cy2[s] = zp;
+                    cy1[s] = z;
+                    out += z * gain[s];
+                }
+                out += pcm * 0.25f;
+                out *= 4;
+                data[index + channel] = (int) out;
+            }
+        }
+    }
+}
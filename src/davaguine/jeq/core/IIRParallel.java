@@ -0,0 +1,267 @@
+/*
+ *  21.04.2004 Original verion. davagin@udm.ru.
+ *-----------------------------------------------------------------------
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *----------------------------------------------------------------------
+ */
+package davaguine.jeq.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Equalizer which filters the channels of a block in parallel.
+ * The block is deinterleaved into one array per channel, groups of
+ * channels are filtered by the tasks of an executor (the common
+ * ForkJoinPool by default) and the result is interleaved back.
+ * Small blocks and streams with few channels are filtered by the
+ * calling thread as in IIR, because handing work over to other threads
+ * costs more than it saves there.
+ */
+public class IIRParallel extends IIR {
+    /**
+     * Default minimal number of channels for parallel filtering
+     */
+    public final static int DEFAULT_MIN_CHANNELS = 4;
+    /**
+     * Default minimal block length (in samples of all channels) for parallel filtering
+     */
+    public final static int DEFAULT_MIN_LENGTH = 4096;
+
+    private final Executor executor;
+    private final int parallelism;
+    private int minChannels = DEFAULT_MIN_CHANNELS;
+    private int minLength = DEFAULT_MIN_LENGTH;
+
+    /* Deinterleaved block, one array per channel */
+    private int[][] planar;
+    /* First failure of a task in current block */
+    private volatile RuntimeException failure;
+
+    /**
+     * Constructs equalizer which uses the common ForkJoinPool
+     *
+     * @param bands    is the number of bands to be used
+     * @param rate     is the sample rate of equalizer
+     * @param channels is the number of channels
+     */
+    public IIRParallel(int bands, float rate, int channels) {
+        this(bands, rate, channels, null);
+    }
+
+    /**
+     * Constructs equalizer which uses given executor
+     *
+     * @param bands    is the number of bands to be used
+     * @param rate     is the sample rate of equalizer
+     * @param channels is the number of channels
+     * @param executor is the executor for the tasks or null for the common ForkJoinPool
+     */
+    public IIRParallel(int bands, float rate, int channels, Executor executor) {
+        super(bands, rate, channels);
+        this.executor = executor != null ? executor : ForkJoinPool.commonPool();
+        this.parallelism = executor instanceof ForkJoinPool ? ((ForkJoinPool) executor).getParallelism()
+                : executor != null ? Runtime.getRuntime().availableProcessors()
+                : ForkJoinPool.getCommonPoolParallelism();
+        this.planar = new int[channels][0];
+    }
+
+    /**
+     * Sets the thresholds for parallel filtering. Blocks with fewer channels
+     * or fewer samples are filtered by the calling thread.
+     *
+     * @param minChannels is the minimal number of channels
+     * @param minLength   is the minimal block length in samples of all channels
+     */
+    public void setThreshold(int minChannels, int minLength) {
+        this.minChannels = minChannels;
+        this.minLength = minLength;
+    }
+
+    /**
+     * Returns the minimal number of channels for parallel filtering
+     *
+     * @return the number of channels
+     */
+    public int getMinChannels() {
+        return minChannels;
+    }
+
+    /**
+     * Returns the minimal block length for parallel filtering
+     *
+     * @return the block length in samples of all channels
+     */
+    public int getMinLength() {
+        return minLength;
+    }
+
+    /**
+     * Main filtering method.
+     * In parallel mode only whole frames of the block are filtered.
+     *
+     * @param data   - data to be filtered
+     * @param length - length of data in buffer
+     */
+    public void iir(int[] data, int length) {
+        int channels = this.channels;
+        if (!isParallel(channels, length)) {
+            super.iir(data, length);
+            return;
+        }
+
+        int frames = length / channels;
+        if (planar[0].length < frames)
+            for (int channel = 0; channel < channels; channel++)
+                planar[channel] = new int[frames];
+        for (int channel = 0; channel < channels; channel++) {
+            int[] p = planar[channel];
+            for (int i = 0, index = channel; i < frames; i++, index += channels)
+                p[i] = data[index];
+        }
+        iirParallel(planar, 0, frames);
+        for (int channel = 0; channel < channels; channel++) {
+            int[] p = planar[channel];
+            for (int i = 0, index = channel; i < frames; i++, index += channels)
+                data[index] = p[i];
+        }
+    }
+
+    /**
+     * Filtering method for planar (deinterleaved) data: one array per channel.
+     * The channels are filtered in place, without copying.
+     *
+     * @param data   - data to be filtered, data[channel][offset .. offset + length - 1]
+     * @param offset - index of the first sample in every channel
+     * @param length - number of samples in every channel
+     */
+    public void iir(int[][] data, int offset, int length) {
+        if (isParallel(channels, length * channels))
+            iirParallel(data, offset, length);
+        else
+            super.iir(data, offset, length);
+    }
+
+    /**
+     * The one pass byte kernels are serial: blocks which are filtered in
+     * parallel are left to the conversion into int samples and iir(int[], int).
+     */
+    boolean iir(byte[] in, int inoff, byte[] out, int outoff, int frames, SampleConverter format) {
+        if (isParallel(channels, frames * channels))
+            return false;
+        return super.iir(in, inoff, out, outoff, frames, format);
+    }
+
+    /**
+     * Tests if iir(int[][], int, int) is faster than iir(int[], int).
+     * True when the channels are filtered in parallel, because planar data
+     * doesn't have to be copied then.
+     *
+     * @return true if planar data is preferred
+     */
+    public boolean isPlanarPreferred() {
+        return channels >= minChannels && Math.min(channels, parallelism) >= 2;
+    }
+
+    private boolean isParallel(int channels, int length) {
+        return channels >= minChannels && length >= minLength && Math.min(channels, parallelism) >= 2;
+    }
+
+    private void iirParallel(int[][] data, int offset, int length) {
+        int channels = this.channels;
+        int tasks = Math.min(channels, parallelism);
+        loadGains();
+        /* A ramp changes the gains every frame, such blocks are filtered by the calling thread */
+        if (isRamping()) {
+            super.iir(data, offset, length);
+            return;
+        }
+        flushDenormals(length);
+        /* The input of skipped bands is recorded before the channels are filtered in place */
+        record(data, offset, length);
+        if (isBypassed())
+            return;
+
+        /* Every task filters a contiguous group of channels, the caller takes the first group */
+        CountDownLatch done = new CountDownLatch(tasks - 1);
+        for (int task = 1; task < tasks; task++) {
+            Group group = new Group(data, offset, length, channels * task / tasks, channels * (task + 1) / tasks, done);
+            try {
+                executor.execute(group);
+            } catch (RejectedExecutionException e) {
+                group.run();
+            }
+        }
+        filter(data, offset, length, 0, channels / tasks);
+        awaitUninterruptibly(done);
+
+        RuntimeException e = failure;
+        if (e != null) {
+            failure = null;
+            throw e;
+        }
+    }
+
+    private void filter(int[][] data, int offset, int length, int from, int to) {
+        for (int channel = from; channel < to; channel++)
+            iirChannel(data[channel], offset, length, 1, channel);
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                /* The tasks work on our buffers, so we have to wait for them anyway */
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /* Filters a group of channels */
+    private class Group implements Runnable {
+        private final int[][] data;
+        private final int offset;
+        private final int length;
+        private final int from;
+        private final int to;
+        private final CountDownLatch done;
+
+        Group(int[][] data, int offset, int length, int from, int to, CountDownLatch done) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.from = from;
+            this.to = to;
+            this.done = done;
+        }
+
+        public void run() {
+            try {
+                filter(data, offset, length, from, to);
+            } catch (RuntimeException e) {
+                failure = e;
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+}
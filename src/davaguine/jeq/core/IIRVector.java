@@ -0,0 +1,361 @@
+/*
+ *  21.04.2004 Original verion. davagin@udm.ru.
+ *-----------------------------------------------------------------------
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *----------------------------------------------------------------------
+ */
+package davaguine.jeq.core;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Arrays;
+
+/**
+ * IIR equalizer engine which computes the bands of one sample in SIMD lanes
+ * with the Java Vector API. It needs the jdk.incubator.vector module, so it is
+ * normally created by {@link AbstractIIR#newInstance(int, float, int)} only when
+ * the module is available.
+ * <p/>
+ * Every band is filtered exactly as in {@link IIR}; only the order in which
+ * the band outputs are summed differs, so results may differ from the scalar
+ * engine by one least significant bit.
+ * <p/>
+ * The lanes always hold bands of one channel, also for many channels. Lanes
+ * of channels (one band of every channel per instruction) would save the
+ * sum across the lanes, but the frames would have to be gathered from and
+ * scattered to interleaved samples with a stride of the channel count, and
+ * the lanes would go unused for channel counts which are not a multiple of
+ * the vector length. With 8 or more channels the scalar IIR filters channel
+ * by channel and IIRParallel spreads the channels over the cores instead.
+ */
+public class IIRVector extends AbstractIIR {
+    private final static VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    /* Number of bands rounded up to the vector length */
+    private int stride;
+
+    /* Filter history, one array per tap, indexed by [channel * stride + band] */
+    private double[] x1; /* x[n-1] */
+    private double[] x2; /* x[n-2] */
+    private double[] y1; /* y[n-1] */
+    private double[] y2; /* y[n-2] */
+
+    /* History of the second filter stage, allocated in cascaded mode */
+    private double[] cx1;
+    private double[] cx2;
+    private double[] cy1;
+    private double[] cy2;
+
+    /* Coefficients padded to stride, padding lanes are zero */
+    private double[] valpha;
+    private double[] vbeta;
+    private double[] vgamma;
+
+    /* Band gains of current block, indexed by [channel * stride + band] */
+    private double[] gains;
+
+    /**
+     * Constructs equalizer with given config
+     *
+     * @param bands    is the number of bands to be used
+     * @param rate     is the sample rate of equalizer
+     * @param channels is the number of channels
+     */
+    public IIRVector(int bands, float rate, int channels) {
+        super(bands, rate, channels);
+        initIIR();
+    }
+
+    /**
+     * Constructs equalizer with custom band layout
+     *
+     * @param layout   is the band layout
+     * @param rate     is the sample rate of equalizer
+     * @param channels is the number of channels
+     */
+    public IIRVector(IIRBandLayout layout, float rate, int channels) {
+        super(layout, rate, channels);
+        initIIR();
+    }
+
+    /* Init the filters */
+    private void initIIR() {
+        stride = SPECIES.loopBound(bands + SPECIES.length() - 1);
+        valpha = Arrays.copyOf(alpha, stride);
+        vbeta = Arrays.copyOf(beta, stride);
+        vgamma = Arrays.copyOf(gamma, stride);
+        x1 = new double[channels * stride];
+        x2 = new double[channels * stride];
+        y1 = new double[channels * stride];
+        y2 = new double[channels * stride];
+        gains = new double[channels * stride];
+    }
+
+    /**
+     * Tests if the hardware has SIMD registers wide enough
+     * for the vectorized engine to be worth using
+     *
+     * @return true if vectorized engine is faster than scalar one
+     */
+    public static boolean isSupported() {
+        return SPECIES.length() >= 4;
+    }
+
+    /**
+     * Clear filter history.
+     */
+    public void cleanHistory() {
+        Arrays.fill(x1, 0);
+        Arrays.fill(x2, 0);
+        Arrays.fill(y1, 0);
+        Arrays.fill(y2, 0);
+        if (cx1 != null) {
+            Arrays.fill(cx1, 0);
+            Arrays.fill(cx2, 0);
+            Arrays.fill(cy1, 0);
+            Arrays.fill(cy2, 0);
+        }
+    }
+
+    void initCascade() {
+        if (cx1 == null) {
+            cx1 = new double[channels * stride];
+            cx2 = new double[channels * stride];
+            cy1 = new double[channels * stride];
+            cy2 = new double[channels * stride];
+        } else {
+            Arrays.fill(cx1, 0);
+            Arrays.fill(cx2, 0);
+            Arrays.fill(cy1, 0);
+            Arrays.fill(cy2, 0);
+        }
+    }
+
+    void flushHistory() {
+        flush(x1);
+        flush(x2);
+        flush(y1);
+        flush(y2);
+        flush(cx1);
+        flush(cx2);
+        flush(cy1);
+        flush(cy2);
+    }
+
+    double getHistoryPeak() {
+        double peak = 0;
+        peak = peak(x1, 0, x1.length, peak);
+        peak = peak(x2, 0, x2.length, peak);
+        peak = peak(y1, 0, y1.length, peak);
+        peak = peak(y2, 0, y2.length, peak);
+        if (cascade) {
+            peak = peak(cx1, 0, cx1.length, peak);
+            peak = peak(cx2, 0, cx2.length, peak);
+            peak = peak(cy1, 0, cy1.length, peak);
+            peak = peak(cy2, 0, cy2.length, peak);
+        }
+        return peak;
+    }
+
+    /**
+     * Main filtering method.
+     *
+     * @param data   - data to be filtered
+     * @param length - length of data in buffer
+     */
+    public void iir(int[] data, int length) {
+        flushDenormals(length / channels);
+        if (cascade) {
+            iirCascade(data, length);
+            return;
+        }
+        int index, band, channel, g, s;
+        double hx1[] = x1, hx2[] = x2, hy1[] = y1, hy2[] = y2;
+        double cfa[] = valpha, cfb[] = vbeta, cfg[] = vgamma;
+        double gain[] = gains;
+        int stride = this.stride, channels = this.channels, lanes = SPECIES.length();
+        double pcm, out;
+        DoubleVector vpcm, x, yp, y, sum;
+
+        loadGains(gain, stride);
+        float eqpreamp[] = preamp;
+
+        for (index = 0; index < length; index += channels) {
+            for (channel = 0, g = 0; channel < channels; channel++, g += stride) {
+                pcm = (double) data[index + channel] * eqpreamp[channel];
+                vpcm = DoubleVector.broadcast(SPECIES, pcm);
+                sum = DoubleVector.zero(SPECIES);
+                for (band = 0; band < stride; band += lanes) {
+                    s = g + band;
+                    x = DoubleVector.fromArray(SPECIES, hx1, s);
+                    yp = DoubleVector.fromArray(SPECIES, hy1, s);
+                    /* y(n) = alpha * [x(n)-x(n-2)] + gamma * y(n-1) - beta * y(n-2) */
+                    y = DoubleVector.fromArray(SPECIES, cfa, band).mul(vpcm.sub(DoubleVector.fromArray(SPECIES, hx2, s)))
+                            .add(DoubleVector.fromArray(SPECIES, cfg, band).mul(yp))
+                            .sub(DoubleVector.fromArray(SPECIES, cfb, band).mul(DoubleVector.fromArray(SPECIES, hy2, s)));
+                    x.intoArray(hx2, s);
+                    vpcm.intoArray(hx1, s);
+                    yp.intoArray(hy2, s);
+                    y.intoArray(hy1, s);
+                    sum = sum.add(y.mul(DoubleVector.fromArray(SPECIES, gain, s)));
+                }
+                out = sum.reduceLanes(VectorOperators.ADD);
+                out += (pcm * 0.25);
+                out *= 4;
+                data[index + channel] = (int) out;
+            }
+        }
+    }
+
+    /**
+     * Filtering method for float samples, they are filtered without
+     * conversion to int and are not clamped.
+     *
+     * @param data   - data to be filtered
+     * @param length - length of data in buffer
+     */
+    public void iir(float[] data, int length) {
+        int stride = this.stride, channels = this.channels;
+        int index, channel, g;
+        double pcm;
+
+        flushDenormals(length / channels);
+        loadGains(gains, stride);
+        float eqpreamp[] = preamp;
+
+        for (index = 0; index < length; index += channels)
+            for (channel = 0, g = 0; channel < channels; channel++, g += stride) {
+                pcm = (double) data[index + channel] * eqpreamp[channel];
+                data[index + channel] = (float) (cascade ? filterCascade(pcm, g) : filter(pcm, g));
+            }
+    }
+
+    /* Filters one sample after the preamp, g is the index of the first band of its channel */
+    private double filter(double pcm, int g) {
+        double hx1[] = x1, hx2[] = x2, hy1[] = y1, hy2[] = y2;
+        double cfa[] = valpha, cfb[] = vbeta, cfg[] = vgamma;
+        double gain[] = gains;
+        int stride = this.stride, lanes = SPECIES.length(), band, s;
+        DoubleVector vpcm = DoubleVector.broadcast(SPECIES, pcm), x, yp, y, sum = DoubleVector.zero(SPECIES);
+        for (band = 0; band < stride; band += lanes) {
+            s = g + band;
+            x = DoubleVector.fromArray(SPECIES, hx1, s);
+            yp = DoubleVector.fromArray(SPECIES, hy1, s);
+            y = DoubleVector.fromArray(SPECIES, cfa, band).mul(vpcm.sub(DoubleVector.fromArray(SPECIES, hx2, s)))
+                    .add(DoubleVector.fromArray(SPECIES, cfg, band).mul(yp))
+                    .sub(DoubleVector.fromArray(SPECIES, cfb, band).mul(DoubleVector.fromArray(SPECIES, hy2, s)));
+            x.intoArray(hx2, s);
+            vpcm.intoArray(hx1, s);
+            yp.intoArray(hy2, s);
+            y.intoArray(hy1, s);
+            sum = sum.add(y.mul(DoubleVector.fromArray(SPECIES, gain, s)));
+        }
+        double out = sum.reduceLanes(VectorOperators.ADD);
+        out += (pcm * 0.25);
+        out *= 4;
+        return out;
+    }
+
+    /* Same as filter() with the second filter stage after every band */
+    private double filterCascade(double pcm, int g) {
+        double hx1[] = x1, hx2[] = x2, hy1[] = y1, hy2[] = y2;
+        double cx1[] = this.cx1, cx2[] = this.cx2, cy1[] = this.cy1, cy2[] = this.cy2;
+        double cfa[] = valpha, cfb[] = vbeta, cfg[] = vgamma;
+        double gain[] = gains;
+        int stride = this.stride, lanes = SPECIES.length(), band, s;
+        DoubleVector vpcm = DoubleVector.broadcast(SPECIES, pcm), a, b, c, x, yp, y, zp, z, sum = DoubleVector.zero(SPECIES);
+        for (band = 0; band < stride; band += lanes) {
+            s = g + band;
+            a = DoubleVector.fromArray(SPECIES, cfa, band);
+            b = DoubleVector.fromArray(SPECIES, cfb, band);
+            c = DoubleVector.fromArray(SPECIES, cfg, band);
+            x = DoubleVector.fromArray(SPECIES, hx1, s);
+            yp = DoubleVector.fromArray(SPECIES, hy1, s);
+            y = a.mul(vpcm.sub(DoubleVector.fromArray(SPECIES, hx2, s))).add(c.mul(yp)).sub(b.mul(DoubleVector.fromArray(SPECIES, hy2, s)));
+            x.intoArray(hx2, s);
+            vpcm.intoArray(hx1, s);
+            yp.intoArray(hy2, s);
+            y.intoArray(hy1, s);
+            x = DoubleVector.fromArray(SPECIES, cx1, s);
+            zp = DoubleVector.fromArray(SPECIES, cy1, s);
+            z = a.mul(y.sub(DoubleVector.fromArray(SPECIES, cx2, s))).add(c.mul(zp)).sub(b.mul(DoubleVector.fromArray(SPECIES, cy2, s)));
+            x.intoArray(cx2, s);
+            y.intoArray(cx1, s);
+            zp.intoArray(cy2, s);
+            z.intoArray(cy1, s);
+            sum = sum.add(z.mul(DoubleVector.fromArray(SPECIES, gain, s)));
+        }
+        double out = sum.reduceLanes(VectorOperators.ADD);
+        out += (pcm * 0.25);
+        out *= 4;
+        return out;
+    }
+
+    /* Same as iir() with the second filter stage after every band */
+    private void iirCascade(int[] data, int length) {
+        int index, band, channel, g, s;
+        double hx1[] = x1, hx2[] = x2, hy1[] = y1, hy2[] = y2;
+        double cx1[] = this.cx1, cx2[] = this.cx2, cy1[] = this.cy1, cy2[] = this.cy2;
+        double cfa[] = valpha, cfb[] = vbeta, cfg[] = vgamma;
+        double gain[] = gains;
+        int stride = this.stride, channels = this.channels, lanes = SPECIES.length();
+        double pcm, out;
+        DoubleVector vpcm, a, b, c, x, yp, y, zp, z, sum;
+
+        loadGains(gain, stride);
+        float eqpreamp[] = preamp;
+
+        for (index = 0; index < length; index += channels) {
+            for (channel = 0, g = 0; channel < channels; channel++, g += stride) {
+                pcm = (double) data[index + channel] * eqpreamp[channel];
+                vpcm = DoubleVector.broadcast(SPECIES, pcm);
+                sum = DoubleVector.zero(SPECIES);
+                for (band = 0; band < stride; band += lanes) {
+                    s = g + band;
+                    a = DoubleVector.fromArray(SPECIES, cfa, band);
+                    b = DoubleVector.fromArray(SPECIES, cfb, band);
+                    c = DoubleVector.fromArray(SPECIES, cfg, band);
+                    /* First stage, fed by the input */
+                    x = DoubleVector.fromArray(SPECIES, hx1, s);
+                    yp = DoubleVector.fromArray(SPECIES, hy1, s);
+                    y = a.mul(vpcm.sub(DoubleVector.fromArray(SPECIES, hx2, s)))
+                            .add(c.mul(yp))
+                            .sub(b.mul(DoubleVector.fromArray(SPECIES, hy2, s)));
+                    x.intoArray(hx2, s);
+                    vpcm.intoArray(hx1, s);
+                    yp.intoArray(hy2, s);
+                    y.intoArray(hy1, s);
+                    /* Second stage, fed by the first one */
+                    x = DoubleVector.fromArray(SPECIES, cx1, s);
+                    zp = DoubleVector.fromArray(SPECIES, cy1, s);
+                    z = a.mul(y.sub(DoubleVector.fromArray(SPECIES, cx2, s)))
+                            .add(c.mul(zp))
+                            .sub(b.mul(DoubleVector.fromArray(SPECIES, cy2, s)));
+                    x.intoArray(cx2, s);
+                    y.intoArray(cx1, s);
+                    zp.intoArray(cy2, s);
+                    z.intoArray(cy1, s);
+                    sum = sum.add(z.mul(DoubleVector.fromArray(SPECIES, gain, s)));
+                }
+                out = sum.reduceLanes(VectorOperators.ADD);
+                out += (pcm * 0.25);
+                out *= 4;
+                data[index + channel] = (int) out;
+            }
+        }
+    }
+}
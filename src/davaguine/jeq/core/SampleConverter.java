@@ -0,0 +1,619 @@
+/*
+ *  21.04.2004 Original verion. davagin@udm.ru.
+ *-----------------------------------------------------------------------
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *----------------------------------------------------------------------
+ */
+package davaguine.jeq.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Conversion of PCM bytes into int samples for the equalizer and back.
+ * Signed samples are taken as is, unsigned ones are centred around zero.
+ * On the way back the samples are clamped to the range of the sample size.
+ * 32-bit integer samples need no clamping: the engines saturate on the
+ * conversion of the filter output to int.
+ * <p/>
+ * Float samples (32 and 64-bit PCM_FLOAT) are converted into a float array
+ * with toFloat/fromFloat, the engines filter them without int conversion.
+ * 64-bit samples are narrowed to float on the way in: 64-bit PCM_FLOAT data
+ * is filtered and written back with the precision of float (24-bit mantissa),
+ * not of double.
+ * <p/>
+ * 16, 32 and 64-bit samples are accessed through a ByteBuffer view of the array in
+ * the byte order of the data, which the JIT compiles to plain (unaligned)
+ * loads and stores. The views of the last source and destination arrays are
+ * kept; an array different from those gets a new view, the only allocation
+ * of the conversions. 24-bit samples stay byte by byte: reading them as a
+ * wider int and shifting measured slower than assembling the three bytes.
+ * <p/>
+ * The ByteBuffer overloads of toInt/toByte and toFloat/fromFloat convert
+ * the bytes of a buffer, direct or mapped ones too, with absolute gets and
+ * puts in the byte order of the buffer, which has to be the one of the data.
+ */
+final class SampleConverter {
+    final boolean signed;
+    final boolean floating;
+    final int samplesize;
+    final boolean bigendian;
+
+    /* Views of the last source and destination arrays */
+    private ByteBuffer inview;
+    private ByteBuffer outview;
+
+    /**
+     * Constructs converter for given integer format
+     *
+     * @param signed     represents pcm data as signed or unsigned
+     * @param samplesize is the size of sample in bits (8, 16, 24 or 32)
+     * @param bigendian  represents pcm data as big endian or little endian
+     */
+    SampleConverter(boolean signed, int samplesize, boolean bigendian) {
+        this(signed, false, samplesize, bigendian);
+    }
+
+    /**
+     * Constructs converter for given format
+     *
+     * @param signed     represents pcm data as signed or unsigned, float data is always signed
+     * @param floating   represents pcm data as float (PCM_FLOAT)
+     * @param samplesize is the size of sample in bits (8, 16, 24 or 32 for integers, 32 or 64 for floats)
+     * @param bigendian  represents pcm data as big endian or little endian
+     */
+    SampleConverter(boolean signed, boolean floating, int samplesize, boolean bigendian) {
+        if (!isSupported(floating, samplesize))
+            throw new IllegalArgumentException("Unsupported sample bit size");
+        this.signed = signed || floating;
+        this.floating = floating;
+        this.samplesize = samplesize;
+        this.bigendian = bigendian;
+    }
+
+    /**
+     * Tests if given integer sample size is supported
+     *
+     * @param samplesize is the size of sample in bits
+     * @return true if the sample size is supported
+     */
+    static boolean isSupported(int samplesize) {
+        return isSupported(false, samplesize);
+    }
+
+    /**
+     * Tests if given sample size is supported
+     *
+     * @param floating   represents float samples
+     * @param samplesize is the size of sample in bits
+     * @return true if the sample size is supported
+     */
+    static boolean isSupported(boolean floating, int samplesize) {
+        if (floating)
+            return samplesize == 32 || samplesize == 64;
+        switch (samplesize) {
+            case 8:
+            case 16:
+            case 24:
+            case 32:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private ByteBuffer inview(byte[] b) {
+        ByteBuffer v = inview;
+        if (v == null || v.array() != b)
+            inview = v = view(b);
+        return v;
+    }
+
+    private ByteBuffer outview(byte[] b) {
+        ByteBuffer v = outview;
+        if (v == null || v.array() != b)
+            outview = v = view(b);
+        return v;
+    }
+
+    private ByteBuffer view(byte[] b) {
+        return ByteBuffer.wrap(b).order(bigendian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Converts bytes into samples
+     *
+     * @param b      is the source array
+     * @param off    is the index of the first byte
+     * @param length is the number of bytes, a multiple of sample size
+     * @param data   is the destination array
+     * @return the number of samples
+     */
+    int toInt(byte[] b, int off, int length, int[] data) {
+        int l = 0;
+        int p = off;
+        switch (samplesize) {
+            case 8: {
+                l = length;
+                if (signed)
+                    for (int i = 0; i < l; i++)
+                        data[i] = b[p++];
+                else
+                    for (int i = 0; i < l; i++)
+                        data[i] = (b[p++] & 0xff) - 0x80;
+                break;
+            }
+            case 16: {
+                l = length >> 1;
+                ByteBuffer v = inview(b);
+                for (int i = 0; i < l; i++, p += 2)
+                    data[i] = sample16(v.getShort(p));
+                break;
+            }
+            case 24: {
+                l = length / 3;
+                if (bigendian)
+                    for (int i = 0; i < l; i++, p += 3)
+                        data[i] = sample24((b[p] & 0xff) << 16 | (b[p + 1] & 0xff) << 8 | (b[p + 2] & 0xff));
+                else
+                    for (int i = 0; i < l; i++, p += 3)
+                        data[i] = sample24((b[p] & 0xff) | (b[p + 1] & 0xff) << 8 | (b[p + 2] & 0xff) << 16);
+                break;
+            }
+            case 32: {
+                l = length >> 2;
+                ByteBuffer v = inview(b);
+                for (int i = 0; i < l; i++, p += 4)
+                    data[i] = sample32(v.getInt(p));
+                break;
+            }
+        }
+        return l;
+    }
+
+    /**
+     * Converts samples into bytes
+     *
+     * @param data   is the source array
+     * @param length is the number of samples
+     * @param b      is the destination array
+     * @param off    is the index of the first byte
+     * @return the number of bytes
+     */
+    int toByte(int[] data, int length, byte[] b, int off) {
+        int p = off;
+        int d;
+        switch (samplesize) {
+            case 8: {
+                for (int i = 0; i < length; i++)
+                    b[p++] = (byte) wrap8Bit(data[i]);
+                break;
+            }
+            case 16: {
+                ByteBuffer v = outview(b);
+                for (int i = 0; i < length; i++, p += 2)
+                    v.putShort(p, (short) wrap16Bit(data[i]));
+                break;
+            }
+            case 24: {
+                if (bigendian) {
+                    for (int i = 0; i < length; i++) {
+                        d = wrap24Bit(data[i]);
+                        b[p++] = (byte) (d >> 16);
+                        b[p++] = (byte) (d >> 8);
+                        b[p++] = (byte) d;
+                    }
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        d = wrap24Bit(data[i]);
+                        b[p++] = (byte) d;
+                        b[p++] = (byte) (d >> 8);
+                        b[p++] = (byte) (d >> 16);
+                    }
+                }
+                break;
+            }
+            case 32: {
+                ByteBuffer v = outview(b);
+                for (int i = 0; i < length; i++, p += 4)
+                    v.putInt(p, wrap32Bit(data[i]));
+                break;
+            }
+        }
+        return p - off;
+    }
+
+    /**
+     * Converts bytes of float samples into floats
+     *
+     * @param b      is the source array
+     * @param off    is the index of the first byte
+     * @param length is the number of bytes
+     * @param data   is the destination array
+     * @return the number of samples
+     */
+    int toFloat(byte[] b, int off, int length, float[] data) {
+        int l, p = off;
+        ByteBuffer v = inview(b);
+        if (samplesize == 32) {
+            l = length >> 2;
+            for (int i = 0; i < l; i++, p += 4)
+                data[i] = v.getFloat(p);
+        } else {
+            l = length >> 3;
+            for (int i = 0; i < l; i++, p += 8)
+                data[i] = (float) v.getDouble(p);
+        }
+        return l;
+    }
+
+    /**
+     * Converts floats into bytes of float samples. The samples are not clamped.
+     *
+     * @param data   is the source array
+     * @param length is the number of samples
+     * @param b      is the destination array
+     * @param off    is the index of the first byte
+     * @return the number of bytes
+     */
+    int fromFloat(float[] data, int length, byte[] b, int off) {
+        int p = off;
+        ByteBuffer v = outview(b);
+        if (samplesize == 32) {
+            for (int i = 0; i < length; i++, p += 4)
+                v.putFloat(p, data[i]);
+        } else {
+            for (int i = 0; i < length; i++, p += 8)
+                v.putDouble(p, data[i]);
+        }
+        return p - off;
+    }
+
+    /**
+     * Converts bytes of a buffer into samples. The bytes are read with
+     * absolute gets, so a direct or mapped buffer is converted without a
+     * copy into an array; position and limit are not used.
+     *
+     * @param b      is the source buffer, in the byte order of the data
+     * @param off    is the index of the first byte
+     * @param length is the number of bytes, a multiple of sample size
+     * @param data   is the destination array
+     * @return the number of samples
+     */
+    int toInt(ByteBuffer b, int off, int length, int[] data) {
+        int l = 0;
+        int p = off;
+        switch (samplesize) {
+            case 8: {
+                l = length;
+                if (signed)
+                    for (int i = 0; i < l; i++)
+                        data[i] = b.get(p++);
+                else
+                    for (int i = 0; i < l; i++)
+                        data[i] = (b.get(p++) & 0xff) - 0x80;
+                break;
+            }
+            case 16: {
+                l = length >> 1;
+                for (int i = 0; i < l; i++, p += 2)
+                    data[i] = sample16(b.getShort(p));
+                break;
+            }
+            case 24: {
+                l = length / 3;
+                if (bigendian)
+                    for (int i = 0; i < l; i++, p += 3)
+                        data[i] = sample24((b.get(p) & 0xff) << 16 | (b.get(p + 1) & 0xff) << 8 | (b.get(p + 2) & 0xff));
+                else
+                    for (int i = 0; i < l; i++, p += 3)
+                        data[i] = sample24((b.get(p) & 0xff) | (b.get(p + 1) & 0xff) << 8 | (b.get(p + 2) & 0xff) << 16);
+                break;
+            }
+            case 32: {
+                l = length >> 2;
+                for (int i = 0; i < l; i++, p += 4)
+                    data[i] = sample32(b.getInt(p));
+                break;
+            }
+        }
+        return l;
+    }
+
+    /**
+     * Converts samples into bytes of a buffer with absolute puts
+     *
+     * @param data   is the source array
+     * @param length is the number of samples
+     * @param b      is the destination buffer, in the byte order of the data
+     * @param off    is the index of the first byte
+     * @return the number of bytes
+     */
+    int toByte(int[] data, int length, ByteBuffer b, int off) {
+        int p = off;
+        int d;
+        switch (samplesize) {
+            case 8: {
+                for (int i = 0; i < length; i++)
+                    b.put(p++, (byte) wrap8Bit(data[i]));
+                break;
+            }
+            case 16: {
+                for (int i = 0; i < length; i++, p += 2)
+                    b.putShort(p, (short) wrap16Bit(data[i]));
+                break;
+            }
+            case 24: {
+                if (bigendian) {
+                    for (int i = 0; i < length; i++) {
+                        d = wrap24Bit(data[i]);
+                        b.put(p++, (byte) (d >> 16));
+                        b.put(p++, (byte) (d >> 8));
+                        b.put(p++, (byte) d);
+                    }
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        d = wrap24Bit(data[i]);
+                        b.put(p++, (byte) d);
+                        b.put(p++, (byte) (d >> 8));
+                        b.put(p++, (byte) (d >> 16));
+                    }
+                }
+                break;
+            }
+            case 32: {
+                for (int i = 0; i < length; i++, p += 4)
+                    b.putInt(p, wrap32Bit(data[i]));
+                break;
+            }
+        }
+        return p - off;
+    }
+
+    /**
+     * Converts bytes of float samples in a buffer into floats with absolute gets
+     *
+     * @param b      is the source buffer, in the byte order of the data
+     * @param off    is the index of the first byte
+     * @param length is the number of bytes
+     * @param data   is the destination array
+     * @return the number of samples
+     */
+    int toFloat(ByteBuffer b, int off, int length, float[] data) {
+        int l, p = off;
+        if (samplesize == 32) {
+            l = length >> 2;
+            for (int i = 0; i < l; i++, p += 4)
+                data[i] = b.getFloat(p);
+        } else {
+            l = length >> 3;
+            for (int i = 0; i < l; i++, p += 8)
+                data[i] = (float) b.getDouble(p);
+        }
+        return l;
+    }
+
+    /**
+     * Converts floats into bytes of float samples in a buffer with absolute
+     * puts. The samples are not clamped.
+     *
+     * @param data   is the source array
+     * @param length is the number of samples
+     * @param b      is the destination buffer, in the byte order of the data
+     * @param off    is the index of the first byte
+     * @return the number of bytes
+     */
+    int fromFloat(float[] data, int length, ByteBuffer b, int off) {
+        int p = off;
+        if (samplesize == 32) {
+            for (int i = 0; i < length; i++, p += 4)
+                b.putFloat(p, data[i]);
+        } else {
+            for (int i = 0; i < length; i++, p += 8)
+                b.putDouble(p, data[i]);
+        }
+        return p - off;
+    }
+
+    /**
+     * Converts bytes of whole frames into one array of samples per channel
+     *
+     * @param b        is the source array
+     * @param off      is the index of the first byte
+     * @param frames   is the number of frames
+     * @param channels is the number of channels
+     * @param data     is the destination arrays, one per channel
+     * @return the number of bytes
+     */
+    int toPlanar(byte[] b, int off, int frames, int channels, int[][] data) {
+        int p = off;
+        switch (samplesize) {
+            case 8: {
+                for (int i = 0; i < frames; i++)
+                    for (int c = 0; c < channels; c++)
+                        data[c][i] = signed ? b[p++] : (b[p++] & 0xff) - 0x80;
+                break;
+            }
+            case 16: {
+                ByteBuffer v = inview(b);
+                for (int i = 0; i < frames; i++)
+                    for (int c = 0; c < channels; c++, p += 2)
+                        data[c][i] = sample16(v.getShort(p));
+                break;
+            }
+            case 24: {
+                for (int i = 0; i < frames; i++)
+                    for (int c = 0; c < channels; c++, p += 3)
+                        data[c][i] = sample24(bigendian ? (b[p] & 0xff) << 16 | (b[p + 1] & 0xff) << 8 | (b[p + 2] & 0xff)
+                                : (b[p] & 0xff) | (b[p + 1] & 0xff) << 8 | (b[p + 2] & 0xff) << 16);
+                break;
+            }
+            case 32: {
+                ByteBuffer v = inview(b);
+                for (int i = 0; i < frames; i++)
+                    for (int c = 0; c < channels; c++, p += 4)
+                        data[c][i] = sample32(v.getInt(p));
+                break;
+            }
+        }
+        return p - off;
+    }
+
+    /**
+     * Converts one array of samples per channel into bytes of whole frames
+     *
+     * @param data     is the source arrays, one per channel
+     * @param frames   is the number of frames
+     * @param channels is the number of channels
+     * @param b        is the destination array
+     * @param off      is the index of the first byte
+     * @return the number of bytes
+     */
+    int fromPlanar(int[][] data, int frames, int channels, byte[] b, int off) {
+        int p = off;
+        int d;
+        switch (samplesize) {
+            case 8: {
+                for (int i = 0; i < frames; i++)
+                    for (int c = 0; c < channels; c++)
+                        b[p++] = (byte) wrap8Bit(data[c][i]);
+                break;
+            }
+            case 16: {
+                ByteBuffer v = outview(b);
+                for (int i = 0; i < frames; i++)
+                    for (int c = 0; c < channels; c++, p += 2)
+                        v.putShort(p, (short) wrap16Bit(data[c][i]));
+                break;
+            }
+            case 24: {
+                for (int i = 0; i < frames; i++)
+                    for (int c = 0; c < channels; c++) {
+                        d = wrap24Bit(data[c][i]);
+                        if (bigendian) {
+                            b[p++] = (byte) (d >> 16);
+                            b[p++] = (byte) (d >> 8);
+                            b[p++] = (byte) d;
+                        } else {
+                            b[p++] = (byte) d;
+                            b[p++] = (byte) (d >> 8);
+                            b[p++] = (byte) (d >> 16);
+                        }
+                    }
+                break;
+            }
+            case 32: {
+                ByteBuffer v = outview(b);
+                for (int i = 0; i < frames; i++)
+                    for (int c = 0; c < channels; c++, p += 4)
+                        v.putInt(p, wrap32Bit(data[c][i]));
+                break;
+            }
+        }
+        return p - off;
+    }
+
+    /**
+     * Tests if given bytes are digital silence: every sample is zero, which
+     * is the middle of the range for unsigned data. Negative zero of float
+     * data counts as zero.
+     *
+     * @param b      is the source array
+     * @param off    is the index of the first byte
+     * @param length is the number of bytes, a multiple of sample size
+     * @return true if all samples are zero
+     */
+    boolean isSilent(byte[] b, int off, int length) {
+        int p = off, end = off + length;
+        if (floating) {
+            /* Everything but the sign bit is zero */
+            ByteBuffer v = inview(b);
+            if (samplesize == 32) {
+                for (; p < end; p += 4)
+                    if ((v.getInt(p) & 0x7fffffff) != 0)
+                        return false;
+            } else {
+                for (; p < end; p += 8)
+                    if ((v.getLong(p) & 0x7fffffffffffffffL) != 0)
+                        return false;
+            }
+            return true;
+        }
+        if (signed) {
+            ByteBuffer v = inview(b);
+            for (; p + 8 <= end; p += 8)
+                if (v.getLong(p) != 0)
+                    return false;
+            for (; p < end; p++)
+                if (b[p] != 0)
+                    return false;
+            return true;
+        }
+        /* The most significant byte is 0x80, the others are 0 */
+        int bytes = samplesize >> 3, msb = bigendian ? 0 : bytes - 1;
+        for (; p < end; p += bytes)
+            for (int n = 0; n < bytes; n++)
+                if (b[p + n] != (n == msb ? (byte) 0x80 : 0))
+                    return false;
+        return true;
+    }
+
+    /* Sample from low 16 bits */
+    private int sample16(int raw) {
+        return signed ? (short) raw : (raw & 0xffff) - 0x8000;
+    }
+
+    /* Sample from 24 raw bits */
+    private int sample24(int raw) {
+        return signed ? (raw << 8) >> 8 : raw - 0x800000;
+    }
+
+    /* Sample from 32 raw bits */
+    private int sample32(int raw) {
+        return signed ? raw : raw ^ 0x80000000;
+    }
+
+    /* Clamps the sample, the result has to be stored in the low 8 bits */
+    private int wrap8Bit(int data) {
+        if (data > 127)
+            data = 127;
+        else if (data < -128)
+            data = -128;
+        return signed ? data : data + 0x80;
+    }
+
+    /* Clamps the sample, the result has to be stored in the low 16 bits */
+    private int wrap16Bit(int data) {
+        if (data > 32767)
+            data = 32767;
+        else if (data < -32768)
+            data = -32768;
+        return signed ? data : data + 0x8000;
+    }
+
+    /* Clamps the sample, the result has to be stored in the low 24 bits */
+    private int wrap24Bit(int data) {
+        if (data > 8388607)
+            data = 8388607;
+        else if (data < -8388608)
+            data = -8388608;
+        return signed ? data : data + 0x800000;
+    }
+
+    /* 32-bit samples are already saturated by the engines */
+    private int wrap32Bit(int data) {
+        return signed ? data : data ^ 0x80000000;
+    }
+}
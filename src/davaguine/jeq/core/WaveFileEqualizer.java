@@ -0,0 +1,501 @@
+/*
+ *  21.04.2004 Original verion. davagin@udm.ru.
+ *-----------------------------------------------------------------------
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *----------------------------------------------------------------------
+ */
+package davaguine.jeq.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Equalizes a WAV file into another one through memory mapped files, for
+ * batch processing of big files. The RIFF header is parsed here; the
+ * sample data is mapped in large windows and filtered by a
+ * ByteBufferEqualizer, everything else is copied as is.
+ * <p/>
+ * Integer PCM (8-bit unsigned, 16, 24 and 32-bit signed), IEEE float
+ * (32 and 64-bit) and WAVE_FORMAT_EXTENSIBLE with one of them are
+ * supported, in RIFF and in RF64 files (over 4 GB).
+ * <p/>
+ * With more than one thread the sample data is split into one chunk per
+ * thread. Every chunk is filtered by its own engine, which is warmed up by
+ * filtering the samples before the chunk first (see
+ * AbstractIIR.getPrerollLength), so the chunks join with an error below
+ * the tolerance instead of a click.
+ * <pre>
+ * WaveFileEqualizer eq = new WaveFileEqualizer(new File("in.wav"), 10);
+ * eq.getControls().setBandValue(0, 0, 0.2f);
+ * eq.process(new File("out.wav"));
+ * </pre>
+ */
+public class WaveFileEqualizer {
+    /* Size of one mapped window in bytes, rounded down to whole frames */
+    private final static int WINDOW_SIZE = 64 << 20;
+
+    /**
+     * Default tolerance of the pre-roll in parallel mode, relative to the peak of the input
+     */
+    public final static double DEFAULT_PREROLL_TOLERANCE = 1.0 / (1L << 32);
+
+    private final static int WAVE_FORMAT_PCM = 1;
+    private final static int WAVE_FORMAT_IEEE_FLOAT = 3;
+    private final static int WAVE_FORMAT_EXTENSIBLE = 0xfffe;
+
+    private final File file;
+    private final ByteBufferEqualizer equalizer;
+    private final AbstractIIR iir;
+    private final int bands;
+    private final int precision;
+    private double tolerance = DEFAULT_PREROLL_TOLERANCE;
+
+    private float samplerate;
+    private int channels;
+    private int samplesize;
+    private int encoding;
+    /* size of one frame (a sample of every channel) in bytes */
+    private int framesize;
+    /* position and size of the sample data in the file */
+    private long dataoffset;
+    private long datasize;
+
+    /**
+     * Opens the file and reads its header
+     *
+     * @param file  is the WAV file to be equalized
+     * @param bands is the number of bands
+     * @throws IOException if the file can't be read, is not a WAV file or the format is not supported
+     */
+    public WaveFileEqualizer(File file, int bands) throws IOException {
+        this(file, bands, AbstractIIR.EQ_DOUBLE_PRECISION);
+    }
+
+    /**
+     * Opens the file and reads its header
+     *
+     * @param file      is the WAV file to be equalized
+     * @param bands     is the number of bands
+     * @param precision is AbstractIIR.EQ_DOUBLE_PRECISION or AbstractIIR.EQ_FLOAT_PRECISION
+     * @throws IOException if the file can't be read, is not a WAV file or the format is not supported
+     */
+    public WaveFileEqualizer(File file, int bands, int precision) throws IOException {
+        this.file = file;
+        this.bands = bands;
+        this.precision = precision;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            readHeader(raf.getChannel());
+        } finally {
+            raf.close();
+        }
+        if (!AbstractIIR.isParamsSupported(bands, samplerate, channels))
+            throw new IOException("Unsupported sample rate or number of bands");
+        iir = AbstractIIR.newInstance(bands, samplerate, channels, precision);
+        equalizer = new ByteBufferEqualizer(iir, encoding, samplesize);
+    }
+
+    /**
+     * Returns Controls of equalizer
+     *
+     * @return Controls of equalizer
+     */
+    public IIRControls getControls() {
+        return iir.getControls();
+    }
+
+    /**
+     * Returns the sample rate of the file
+     *
+     * @return sample rate
+     */
+    public float getSampleRate() {
+        return samplerate;
+    }
+
+    /**
+     * Returns the number of channels of the file
+     *
+     * @return the number of channels
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * Returns the size of sample in bits
+     *
+     * @return sample size
+     */
+    public int getSampleSize() {
+        return samplesize;
+    }
+
+    /**
+     * Returns EqualizerInputStream.PCM_SIGNED, PCM_UNSIGNED or PCM_FLOAT
+     *
+     * @return encoding of the samples
+     */
+    public int getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Sets the tolerance of the pre-roll in parallel mode. A smaller one
+     * gives a longer pre-roll.
+     *
+     * @param tolerance is the tolerance relative to the peak of the input
+     * @see AbstractIIR#getPrerollLength(double)
+     */
+    public void setPrerollTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Returns the length of the pre-roll before every chunk in parallel mode
+     *
+     * @return the number of frames
+     */
+    public int getPrerollLength() {
+        return iir.getPrerollLength(tolerance);
+    }
+
+    /**
+     * Returns the number of frames in the file
+     *
+     * @return the number of frames
+     */
+    public long getFrameLength() {
+        return datasize / framesize;
+    }
+
+    private void readHeader(FileChannel channel) throws IOException {
+        long length = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, 0);
+        int riff = header.getInt(0);
+        boolean rf64 = riff == fourcc("RF64");
+        if ((riff != fourcc("RIFF") && !rf64) || header.getInt(8) != fourcc("WAVE"))
+            throw new IOException("Not a WAVE file");
+
+        ByteBuffer chunk = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+        long pos = 12;
+        long ds64size = -1;
+        boolean fmt = false;
+        while (pos + 8 <= length) {
+            chunk.clear().limit(8);
+            readFully(channel, chunk, pos);
+            int id = chunk.getInt(0);
+            long size = chunk.getInt(4) & 0xffffffffL;
+            pos += 8;
+            if (id == fourcc("ds64")) {
+                chunk.clear().limit(16);
+                readFully(channel, chunk, pos);
+                ds64size = chunk.getLong(8);
+            } else if (id == fourcc("fmt ")) {
+                if (size < 16)
+                    throw new IOException("Broken fmt chunk");
+                chunk.clear().limit((int) Math.min(size, 40));
+                readFully(channel, chunk, pos);
+                readFormat(chunk, (int) Math.min(size, 40));
+                fmt = true;
+            } else if (id == fourcc("data")) {
+                if (!fmt)
+                    throw new IOException("No fmt chunk before data");
+                if (rf64 && size == 0xffffffffL && ds64size >= 0)
+                    size = ds64size;
+                /* Writers which don't know the length in advance leave -1 here, or 0 when
+                   the samples run to the end of the file; an empty data chunk has 0 too,
+                   it is followed by the end of the file or by another chunk */
+                if (size == 0xffffffffL || pos + size > length
+                        || (size == 0 && pos < length && !isChunk(channel, pos, length)))
+                    size = length - pos;
+                dataoffset = pos;
+                datasize = size - size % framesize;
+                return;
+            }
+            /* Chunks are word aligned */
+            pos += size + (size & 1);
+        }
+        throw new IOException("No data chunk");
+    }
+
+    private void readFormat(ByteBuffer fmt, int size) throws IOException {
+        int tag = fmt.getShort(0) & 0xffff;
+        channels = fmt.getShort(2) & 0xffff;
+        samplerate = fmt.getInt(4);
+        framesize = fmt.getShort(12) & 0xffff;
+        samplesize = fmt.getShort(14) & 0xffff;
+        if (tag == WAVE_FORMAT_EXTENSIBLE) {
+            if (size < 40)
+                throw new IOException("Broken fmt chunk");
+            /* The first two bytes of the sub format GUID are the format tag */
+            tag = fmt.getShort(24) & 0xffff;
+        }
+        if (tag == WAVE_FORMAT_PCM)
+            encoding = samplesize == 8 ? EqualizerInputStream.PCM_UNSIGNED : EqualizerInputStream.PCM_SIGNED;
+        else if (tag == WAVE_FORMAT_IEEE_FLOAT)
+            encoding = EqualizerInputStream.PCM_FLOAT;
+        else
+            throw new IOException("Unsupported WAVE format " + tag);
+        if (!SampleConverter.isSupported(encoding == EqualizerInputStream.PCM_FLOAT, samplesize))
+            throw new IOException("Unsupported sample bit size");
+        if (channels <= 0 || framesize != channels * samplesize / 8)
+            throw new IOException("Unsupported block alignment");
+    }
+
+    /**
+     * Writes the equalized file. The output has the same header and
+     * trailing chunks as the input, only the sample data differs. The
+     * filter history is cleared first, so the same object can process
+     * the file again with other settings.
+     *
+     * @param out is the output file, it is replaced
+     * @throws IOException if an I/O error occurs
+     */
+    public void process(File out) throws IOException {
+        process(out, 1);
+    }
+
+    /**
+     * Writes the equalized file with given number of threads
+     *
+     * @param out     is the output file, it is replaced
+     * @param threads is the number of threads, e.g. Runtime.availableProcessors()
+     * @throws IOException if an I/O error occurs
+     * @see #process(File)
+     */
+    public void process(File out, int threads) throws IOException {
+        if (out.getCanonicalFile().equals(file.getCanonicalFile())) {
+            process(threads);
+            return;
+        }
+        RandomAccessFile src = new RandomAccessFile(file, "r");
+        try {
+            RandomAccessFile dst = new RandomAccessFile(out, "rw");
+            try {
+                FileChannel in = src.getChannel(), to = dst.getChannel();
+                long length = in.size();
+                dst.setLength(length);
+                /* Everything around the samples is copied as is */
+                transfer(in, 0, dataoffset, to);
+                transfer(in, dataoffset + datasize, length - dataoffset - datasize, to);
+                process(in, to, threads);
+            } finally {
+                dst.close();
+            }
+        } finally {
+            src.close();
+        }
+    }
+
+    /**
+     * Equalizes the file in place. The filter history is cleared first.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void process() throws IOException {
+        process(1);
+    }
+
+    /**
+     * Equalizes the file in place with given number of threads
+     *
+     * @param threads is the number of threads
+     * @throws IOException if an I/O error occurs
+     * @see #process()
+     */
+    public void process(int threads) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            process(raf.getChannel(), null, threads);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /* Filters the sample data of in into out, or in place if out is null */
+    private void process(FileChannel in, FileChannel out, int threads) throws IOException {
+        iir.cleanHistory();
+        long frames = datasize / framesize;
+        int preroll = threads > 1 ? getPrerollLength() : 0;
+        /* Chunks much shorter than the pre-roll aren't worth it */
+        int chunks = (int) Math.max(1, Math.min(threads, frames / (4L * Math.max(preroll, 1))));
+        if (chunks == 1) {
+            filter(in, out, dataoffset, datasize, equalizer);
+            return;
+        }
+
+        /* The pre-roll is read before any chunk is written, which matters in place */
+        long[] offsets = new long[chunks + 1];
+        ByteBuffer[] prerolls = new ByteBuffer[chunks];
+        for (int chunk = 0; chunk <= chunks; chunk++)
+            offsets[chunk] = dataoffset + frames * chunk / chunks * framesize;
+        for (int chunk = 1; chunk < chunks; chunk++) {
+            long size = Math.min((long) preroll * framesize, offsets[chunk] - dataoffset);
+            prerolls[chunk] = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(in, prerolls[chunk], offsets[chunk] - size);
+            prerolls[chunk].clear();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(chunks - 1);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int chunk = 1; chunk < chunks; chunk++)
+                results.add(executor.submit(new Chunk(in, out, offsets[chunk], offsets[chunk + 1] - offsets[chunk], prerolls[chunk])));
+            filter(in, out, offsets[0], offsets[1] - offsets[0], equalizer);
+            for (Future<Void> result : results)
+                result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause.toString());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /* Filters a region of the sample data through mapped windows */
+    private void filter(FileChannel in, FileChannel out, long pos, long size, ByteBufferEqualizer equalizer) throws IOException {
+        int window = WINDOW_SIZE - WINDOW_SIZE % framesize;
+        for (long end = pos + size; pos < end; pos += window) {
+            long length = Math.min(window, end - pos);
+            MappedByteBuffer target;
+            if (out == null)
+                target = in.map(FileChannel.MapMode.READ_WRITE, pos, length);
+            else {
+                target = out.map(FileChannel.MapMode.READ_WRITE, pos, length);
+                target.put(in.map(FileChannel.MapMode.READ_ONLY, pos, length));
+                target.clear();
+            }
+            equalizer.process(target.order(ByteOrder.LITTLE_ENDIAN));
+        }
+    }
+
+    /* One chunk of the sample data, filtered by its own engine after the pre-roll */
+    private class Chunk implements Callable<Void> {
+        private final FileChannel in;
+        private final FileChannel out;
+        private final long pos;
+        private final long size;
+        private final ByteBuffer preroll;
+
+        Chunk(FileChannel in, FileChannel out, long pos, long size, ByteBuffer preroll) {
+            this.in = in;
+            this.out = out;
+            this.pos = pos;
+            this.size = size;
+            this.preroll = preroll;
+        }
+
+        public Void call() throws IOException {
+            AbstractIIR engine = AbstractIIR.newInstance(bands, samplerate, channels, precision);
+            /* Same settings as the main engine; a fresh engine starts at the
+               target gains, where a ramp of the main engine ends */
+            engine.getControls().setValues(iir.getControls());
+            engine.setCascade(iir.isCascade());
+            engine.setDenormalProtection(iir.isDenormalProtection());
+            engine.setRamp(iir.getRampLength(), iir.getRampShape());
+            ByteBufferEqualizer equalizer = new ByteBufferEqualizer(engine, encoding, samplesize);
+            /* Warm up, the filtered pre-roll is thrown away */
+            equalizer.process(preroll);
+            filter(in, out, pos, size, equalizer);
+            return null;
+        }
+    }
+
+    private static void transfer(FileChannel in, long pos, long count, FileChannel out) throws IOException {
+        out.position(pos);
+        while (count > 0) {
+            long n = in.transferTo(pos, count, out);
+            if (n <= 0)
+                throw new IOException("Unexpected end of file");
+            pos += n;
+            count -= n;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long pos) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, pos);
+            if (n < 0)
+                throw new IOException("Unexpected end of file");
+            pos += n;
+        }
+    }
+
+    /* Tests if there is a chunk header with a printable id at pos and the chunk fits into the file */
+    private static boolean isChunk(FileChannel channel, long pos, long length) throws IOException {
+        if (pos + 8 > length)
+            return false;
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, pos);
+        for (int i = 0; i < 4; i++) {
+            int c = header.get(i);
+            if (c < 0x20 || c > 0x7e)
+                return false;
+        }
+        return pos + 8 + (header.getInt(4) & 0xffffffffL) <= length;
+    }
+
+    private static int fourcc(String id) {
+        return id.charAt(0) | id.charAt(1) << 8 | id.charAt(2) << 16 | id.charAt(3) << 24;
+    }
+
+    /**
+     * Equalizes a WAV file from the command line:
+     * <pre>
+     * java davaguine.jeq.core.WaveFileEqualizer in.wav out.wav [gain in dB of every band]
+     * </pre>
+     * The number of gains (10, 15, 25 or 31) gives the number of bands,
+     * without them the file is processed with 10 flat bands. All available
+     * processors are used.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage:");
+            System.out.println("\tjava davaguine.jeq.core.WaveFileEqualizer <input file> <output file> [band gains in dB]*");
+            System.exit(0);
+        }
+        int bands = args.length > 2 ? args.length - 2 : 10;
+        WaveFileEqualizer eq = new WaveFileEqualizer(new File(args[0]), bands);
+        IIRControls controls = eq.getControls();
+        for (int band = 0; band < args.length - 2; band++)
+            for (int channel = 0; channel < eq.getChannels(); channel++)
+                controls.setBandDbValue(band, channel, Float.parseFloat(args[band + 2]));
+        long time = System.currentTimeMillis();
+        eq.process(new File(args[1]), Runtime.getRuntime().availableProcessors());
+        time = System.currentTimeMillis() - time;
+        System.out.println(eq.getFrameLength() + " frames in " + time + " ms");
+    }
+}
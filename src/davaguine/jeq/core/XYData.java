@@ -23,7 +23,10 @@ package davaguine.jeq.core;
  * Author: Dmitry Vaguine
  * Date: 02.05.2004
  * Time: 12:00:29
+ *
+ * @deprecated IIR keeps its filter history in flat arrays and does not use this class any more
  */
+@Deprecated
 public class XYData {
     /**
      * X data
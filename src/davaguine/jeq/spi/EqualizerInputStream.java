@@ -18,6 +18,7 @@
  */
 package davaguine.jeq.spi;
 
+import davaguine.jeq.core.AbstractIIR;
 import davaguine.jeq.core.IIRControls;
 
 import javax.sound.sampled.AudioFormat;
@@ -40,17 +41,41 @@ public class EqualizerInputStream extends AudioInputStream {
      * @param bands  is the number of bands
      */
     public EqualizerInputStream(AudioInputStream stream, int bands) {
+        this(stream, bands, AbstractIIR.EQ_DOUBLE_PRECISION);
+    }
+
+    /**
+     * Constructs new audio stream with given filter precision
+     *
+     * @param stream    input stream with audio data
+     * @param bands     is the number of bands
+     * @param precision is AbstractIIR.EQ_DOUBLE_PRECISION or AbstractIIR.EQ_FLOAT_PRECISION
+     */
+    public EqualizerInputStream(AudioInputStream stream, int bands, int precision) {
         super(stream, stream.getFormat(), stream.getFrameLength());
         AudioFormat format = stream.getFormat();
-        if (!format.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED) && !!format.getEncoding().equals(AudioFormat.Encoding.PCM_UNSIGNED))
+        int encoding = getEncoding(format);
+        if (encoding < 0)
             throw new IllegalArgumentException("Unsupported encoding");
         eq = new davaguine.jeq.core.EqualizerInputStream(stream,
-                format.getSampleRate(),
-                format.getChannels(),
-                format.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED),
+                AbstractIIR.newInstance(bands, format.getSampleRate(), format.getChannels(), precision),
+                encoding,
                 format.getSampleSizeInBits(),
                 format.isBigEndian(),
-                bands);
+                davaguine.jeq.core.EqualizerInputStream.DEFAULT_BUFFER_SIZE,
+                false);
+    }
+
+    /* Maps the encoding of the format to the constants of the core stream, -1 if it is not supported */
+    private static int getEncoding(AudioFormat format) {
+        AudioFormat.Encoding encoding = format.getEncoding();
+        if (encoding.equals(AudioFormat.Encoding.PCM_SIGNED))
+            return davaguine.jeq.core.EqualizerInputStream.PCM_SIGNED;
+        if (encoding.equals(AudioFormat.Encoding.PCM_UNSIGNED))
+            return davaguine.jeq.core.EqualizerInputStream.PCM_UNSIGNED;
+        if (encoding.equals(AudioFormat.Encoding.PCM_FLOAT))
+            return davaguine.jeq.core.EqualizerInputStream.PCM_FLOAT;
+        return -1;
     }
 
     /**
@@ -70,11 +95,13 @@ public class EqualizerInputStream extends AudioInputStream {
      * @return true if params supported
      */
     public static boolean isParamsSupported(AudioFormat format, int bands) {
-        if (!format.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED) && !!format.getEncoding().equals(AudioFormat.Encoding.PCM_UNSIGNED))
+        int encoding = getEncoding(format);
+        if (encoding < 0)
             return false;
         return davaguine.jeq.core.EqualizerInputStream.isParamsSupported(
                 format.getSampleRate(),
                 format.getChannels(),
+                encoding,
                 format.getSampleSizeInBits(),
                 bands);
     }
@@ -0,0 +1,149 @@
+/*
+ *  21.04.2004 Original verion. davagin@udm.ru.
+ *-----------------------------------------------------------------------
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *----------------------------------------------------------------------
+ */
+package davaguine.jeq.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Switches all 31 bands of a mono IIR on after a flat preset, which filled
+ * the warm-up ring, and checks that the bands are brought up to date over
+ * several blocks with bounded work per block. The reference is a stereo
+ * IIR whose second channel keeps every band active, so its first channel
+ * shows what the mono engine has to give once the bands have caught up.
+ * With a ramp, the bands which come in late have to ramp in too.
+ */
+public class IIRWarmUpTest {
+    private static final int BANDS = 31;
+    private static final float RATE = 44100;
+    private static final int BLOCK = 1024;
+    private static final float GAIN = 0.3f;
+
+    @Test
+    public void testCatchUpIsSpread() {
+        IIR engine = new IIR(BANDS, RATE, 1);
+        IIR reference = reference(0);
+        long frame = flat(engine, reference);
+        for (int band = 0; band < BANDS; band++) {
+            engine.getControls().setBandValue(band, 0, GAIN);
+            reference.getControls().setBandValue(band, 0, GAIN);
+        }
+        int blocks = 0;
+        long replayed = engine.getReplayedFrames();
+        do {
+            filter(engine, reference, frame, null);
+            frame += BLOCK;
+            long step = engine.getReplayedFrames() - replayed;
+            replayed += step;
+            assertTrue("block " + blocks + " replayed " + step + " frames", step <= BANDS * (long) (BLOCK + IIR.WARM_FRAMES));
+            blocks++;
+        } while (engine.isWarming() && blocks < 100);
+        assertFalse("still warming after " + blocks + " blocks", engine.isWarming());
+        assertTrue("caught up in the first block", blocks > 1);
+        assertEquals(BANDS, engine.getActiveBands());
+        /* From here on the bands give what the reference gives */
+        long[] max = new long[1];
+        for (int block = 0; block < 100; block++, frame += BLOCK)
+            filter(engine, reference, frame, max);
+        assertTrue("differs by " + max[0] + " LSB after catching up", max[0] <= 1);
+    }
+
+    @Test
+    public void testLateBandRampsIn() {
+        IIR engine = new IIR(BANDS, RATE, 1);
+        IIR reference = reference(0);
+        engine.setRamp(2048, AbstractIIR.RAMP_LINEAR);
+        reference.setRamp(2048, AbstractIIR.RAMP_LINEAR);
+        long frame = flat(engine, reference);
+        for (int band = 0; band < BANDS; band++) {
+            engine.getControls().setBandValue(band, 0, GAIN);
+            reference.getControls().setBandValue(band, 0, GAIN);
+        }
+        /*
+         * The difference to the reference is the part of the missing bands,
+         * it must not change faster than the part of all bands does
+         */
+        double bands = 0, missing = 0;
+        int lastall = 0, last = 0;
+        boolean joined = false;
+        for (int block = 0; block < 200; block++, frame += BLOCK) {
+            int[] x = signal(frame, 1);
+            int[] a = x.clone();
+            int[] b = signal(frame, 2);
+            engine.iir(a, a.length);
+            reference.iir(b, b.length);
+            for (int i = 0; i < BLOCK; i++) {
+                int all = b[2 * i] - x[i], d = b[2 * i] - a[i];
+                if (block > 0 || i > 0) {
+                    bands = Math.max(bands, Math.abs(all - lastall));
+                    missing = Math.max(missing, Math.abs(d - last));
+                }
+                lastall = all;
+                last = d;
+            }
+            joined |= !engine.isWarming();
+        }
+        assertTrue(joined);
+        assertTrue("step of " + missing + " LSB, the bands change by " + bands, missing <= bands * 1.1 + 2);
+    }
+
+    /* Stereo reference whose second channel keeps every band active */
+    private static IIR reference(float gain) {
+        IIR reference = new IIR(BANDS, RATE, 2);
+        for (int band = 0; band < BANDS; band++) {
+            reference.getControls().setBandValue(band, 0, gain);
+            reference.getControls().setBandValue(band, 1, GAIN);
+        }
+        return reference;
+    }
+
+    /* Filters two seconds with a flat preset, which fills the ring, returns the next frame */
+    private static long flat(IIR engine, IIR reference) {
+        long frame = 0;
+        for (; frame < 2 * RATE; frame += BLOCK)
+            filter(engine, reference, frame, null);
+        assertTrue(engine.isBypassed());
+        return frame;
+    }
+
+    /* Filters a block through both engines, max[0] takes the largest difference */
+    private static void filter(IIR engine, IIR reference, long frame, long[] max) {
+        int[] a = signal(frame, 1);
+        int[] b = signal(frame, 2);
+        engine.iir(a, a.length);
+        reference.iir(b, b.length);
+        if (max != null)
+            for (int i = 0; i < BLOCK; i++)
+                max[0] = Math.max(max[0], Math.abs((long) a[i] - b[2 * i]));
+    }
+
+    /* A low tone, the same in every channel */
+    private static int[] signal(long frame, int channels) {
+        int[] data = new int[BLOCK * channels];
+        for (int i = 0; i < BLOCK; i++) {
+            int v = (int) (16000 * Math.sin(2 * Math.PI * 100 * (frame + i) / RATE));
+            for (int channel = 0; channel < channels; channel++)
+                data[i * channels + channel] = v;
+        }
+        return data;
+    }
+}
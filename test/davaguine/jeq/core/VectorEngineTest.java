@@ -0,0 +1,151 @@
+/*
+ *  21.04.2004 Original verion. davagin@udm.ru.
+ *-----------------------------------------------------------------------
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *----------------------------------------------------------------------
+ */
+package davaguine.jeq.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the vectorized engines with the scalar ones on 16-bit material
+ * (the signal and curve of EngineAccuracy) for every band layout, several
+ * sample rates and 1, 2 and 6 channels. IIRVector filters every band like
+ * IIR and only sums the band outputs in another order, so it may differ
+ * from IIR by 1 LSB; so may IIRFloatVector from IIRFloat. Against IIR the
+ * float precision history of IIRFloatVector costs up to 4 LSB up to 48 kHz
+ * and up to 16 LSB at 96 kHz, where the low band poles sit closer to the
+ * unit circle. Needs the jdk.incubator.vector module, it runs in the
+ * vector profile only.
+ */
+public class VectorEngineTest {
+    private static final float[] RATES = {11025, 22050, 44100, 48000, 96000};
+    private static final int[] BANDS = {10, 15, 25, 31};
+    private static final int[] CHANNELS = {1, 2, 6};
+    private static final int FRAMES = 1 << 15;
+    /* Not a multiple of any vector length, so the tails are covered */
+    private static final int BLOCK = 1001;
+
+    /* Largest differences in LSB of 16-bit samples */
+    private static final long ORDER_TOLERANCE = 1;
+    private static final long FLOAT_TOLERANCE = 4;
+    private static final long FLOAT_TOLERANCE_96K = 16;
+
+    @Test
+    public void testDoubleEngine() {
+        for (float rate : RATES)
+            for (int bands : BANDS)
+                for (int channels : CHANNELS) {
+                    if (!AbstractIIR.isParamsSupported(bands, rate, channels))
+                        continue;
+                    check(new IIR(bands, rate, channels), new IIRVector(bands, rate, channels), ORDER_TOLERANCE);
+                }
+    }
+
+    @Test
+    public void testDoubleEngineCascade() {
+        for (float rate : RATES)
+            for (int bands : BANDS)
+                for (int channels : CHANNELS) {
+                    if (!AbstractIIR.isParamsSupported(bands, rate, channels))
+                        continue;
+                    IIR reference = new IIR(bands, rate, channels);
+                    reference.setCascade(true);
+                    IIRVector engine = new IIRVector(bands, rate, channels);
+                    engine.setCascade(true);
+                    check(reference, engine, ORDER_TOLERANCE);
+                }
+    }
+
+    @Test
+    public void testFloatEngine() {
+        for (float rate : RATES)
+            for (int bands : BANDS)
+                for (int channels : CHANNELS) {
+                    if (!AbstractIIR.isParamsSupported(bands, rate, channels))
+                        continue;
+                    check(new IIR(bands, rate, channels), new IIRFloatVector(bands, rate, channels),
+                            rate > 48000 ? FLOAT_TOLERANCE_96K : FLOAT_TOLERANCE);
+                }
+    }
+
+    @Test
+    public void testFloatEngineOrder() {
+        for (float rate : RATES)
+            for (int bands : BANDS)
+                for (int channels : CHANNELS) {
+                    if (!AbstractIIR.isParamsSupported(bands, rate, channels))
+                        continue;
+                    check(new IIRFloat(bands, rate, channels), new IIRFloatVector(bands, rate, channels), ORDER_TOLERANCE);
+                }
+    }
+
+    /* Filters the same music-like signal block by block through both engines */
+    private static void check(AbstractIIR reference, AbstractIIR engine, long tolerance) {
+        int bands = reference.bands, channels = reference.channels;
+        for (AbstractIIR iir : new AbstractIIR[]{reference, engine})
+            smile(iir.getControls(), bands, channels);
+        int[] expected = signal(FRAMES, channels, reference.rate);
+        int[] actual = expected.clone();
+        int block = BLOCK * channels;
+        long max = 0;
+        int[] a = new int[block];
+        int[] b = new int[block];
+        for (int off = 0; off < expected.length; off += block) {
+            int len = Math.min(block, expected.length - off);
+            System.arraycopy(expected, off, a, 0, len);
+            System.arraycopy(actual, off, b, 0, len);
+            reference.iir(a, len);
+            engine.iir(b, len);
+            for (int i = 0; i < len; i++)
+                max = Math.max(max, Math.abs((long) a[i] - b[i]));
+        }
+        assertTrue(engine.getClass().getSimpleName() + (engine.isCascade() ? " cascade " : " ")
+                + bands + " bands " + reference.rate + " Hz " + channels + " channels: " + max + " LSB",
+                max <= tolerance);
+    }
+
+    /* Non-flat curve, so every band does real work */
+    private static void smile(IIRControls controls, int bands, int channels) {
+        for (int channel = 0; channel < channels; channel++) {
+            controls.setPreampValue(channel, 0.8f);
+            for (int band = 0; band < bands; band++) {
+                double x = (band - (bands - 1) / 2.0) / (bands / 2.0);
+                controls.setBandValue(band, channel, (float) (0.3 * x * x - 0.05));
+            }
+        }
+    }
+
+    /* A few sines plus white noise at about -6 dBFS */
+    private static int[] signal(int frames, int channels, float rate) {
+        Random random = new Random(20040421L);
+        int[] data = new int[frames * channels];
+        for (int i = 0; i < frames; i++)
+            for (int channel = 0; channel < channels; channel++) {
+                double t = i / (double) rate;
+                double v = 0.2 * Math.sin(2 * Math.PI * 110 * t + channel)
+                        + 0.15 * Math.sin(2 * Math.PI * 1000 * t)
+                        + 0.1 * Math.sin(2 * Math.PI * 9000 * t)
+                        + 0.05 * (random.nextDouble() * 2 - 1);
+                data[i * channels + channel] = (int) (v * 32767);
+            }
+        return data;
+    }
+}